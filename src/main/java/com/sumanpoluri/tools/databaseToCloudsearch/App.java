@@ -17,6 +17,8 @@ public class App
     private static final String DB_USER = System.getProperty("DB_USER");
     private static final String DB_PASSWORD = System.getProperty("DB_PASSWORD");
     private static final String DB_NAME = System.getProperty("DB_NAME");
+    private static final String RUN_MODE_PARAM = System.getProperty("RUN_MODE");
+    private static final String RUN_MODE = RUN_MODE_PARAM == null ? "" : RUN_MODE_PARAM.trim().toUpperCase(Locale.US);
     private static final DateFormat DF_FULL = DateFormat.getDateTimeInstance(
             DateFormat.FULL,
             DateFormat.FULL,
@@ -32,18 +34,71 @@ public class App
                 DF_FULL.format(new Date()) +
                         ": Started...");
         long startTime = System.currentTimeMillis();
-        ExtractAndUpload extractAndUpload = new ExtractAndUpload(
+        switch (RUN_MODE) {
+            case "TAIL":
+                tail();
+                break;
+            case "LEDGER":
+                Ledger.printSummary();
+                break;
+            case "STAGE_REPORT":
+                StageReport.printReport();
+                break;
+            case "VERIFY":
+                Reconciler reconciler = new Reconciler(
+                        DB_USER,
+                        DB_PASSWORD,
+                        DB_HOST,
+                        DB_PORT,
+                        DB_NAME
+                );
+                reconciler.run();
+                break;
+            default:
+                ExtractAndUpload extractAndUpload = new ExtractAndUpload(
+                        DB_USER,
+                        DB_PASSWORD,
+                        DB_HOST,
+                        DB_PORT,
+                        DB_NAME
+                );
+                extractAndUpload.run();
+                break;
+        }
+        long endTime = System.currentTimeMillis();
+        System.out.println(
+                DF_FULL.format(new Date()) +
+                        ": ...ended in " + ((endTime-startTime)/1000) + "s.");
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    /**
+     * Keeps uploading the changes from the database until the program is stopped (For e.g., with Ctrl+C or SIGTERM).
+     */
+    private static void tail() {
+        final ChangeTailer changeTailer = new ChangeTailer(
                 DB_USER,
                 DB_PASSWORD,
                 DB_HOST,
                 DB_PORT,
                 DB_NAME
         );
-        extractAndUpload.run();
-        long endTime = System.currentTimeMillis();
-        System.out.println(
-                DF_FULL.format(new Date()) +
-                        ": ...ended in " + ((endTime-startTime)/1000) + "s.");
+        final Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                // Let the tailer upload the pending changes before the JVM exits.
+                changeTailer.stop();
+                try {
+                    mainThread.join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        changeTailer.run();
     }
 
 }
\ No newline at end of file
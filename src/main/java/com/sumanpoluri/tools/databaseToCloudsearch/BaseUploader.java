@@ -1,7 +1,10 @@
 package com.sumanpoluri.tools.databaseToCloudsearch;
 
+import com.amazonaws.services.cloudsearchdomain.model.DocumentServiceException;
 import com.amazonaws.services.cloudsearchdomain.model.DocumentServiceWarning;
 import com.amazonaws.services.cloudsearchdomain.model.UploadDocumentsResult;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
@@ -10,8 +13,11 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.text.DateFormat;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.Set;
 
 /**
  * Base class to upload documents to AWS Cloudsearch.
@@ -21,25 +27,62 @@ public abstract class BaseUploader {
     // Class fields
     //==================================================================================================================
     private static final String CUSTOM_LOG_DIR = System.getProperty("LOG_DIR");
-    private static final String DEFAULT_LOG_FILE_NAME_PREFIX = "DatabaseToCloudsearch";
+    static final String DEFAULT_LOG_FILE_NAME_PREFIX = "DatabaseToCloudsearch";
     private static final DateFormat DF_FULL = DateFormat.getDateTimeInstance(
             DateFormat.FULL,
             DateFormat.FULL,
             Locale.US);
+    private static final String ISOLATE_FAILURES_PARAM = System.getProperty("ISOLATE_FAILURES");
+    static final Boolean ISOLATE_FAILURES = ISOLATE_FAILURES_PARAM != null &&
+            ISOLATE_FAILURES_PARAM.trim().equalsIgnoreCase("Y");
+    // HTTP status codes of errors about the request as a whole rather than its documents
+    private static final Set<Integer> BATCH_LEVEL_STATUS_CODES = new HashSet<>(Arrays.asList(
+            401, 403, 404, 405, 406, 407, 408, 411, 413, 415, 429));
+    /**
+     * Document batches are limited to one batch every 10 seconds. Only lower this against a stand-in endpoint (For
+     * e.g., for benchmarks).
+     */
+    private static final long INTERVAL_BETWEEN_BATCHES = Utils.getLongProperty("UPLOAD_INTERVAL", 10000L); // in ms
+    private static long lastUploadedTime = 0L;
 
     //==================================================================================================================
     // Methods
     //==================================================================================================================
 
     /**
-     * Handles the result of the upload.
+     * Handles the result of the upload. The outcome is recorded in the ledger.
      *
+     * @param batch The JSONArray object representing the batch that was uploaded
      * @param result An UploadDocumentsResult object that represents the result of the upload
-     * @param lastUploadedTime Last uploaded time
+     * @param requestTime Time the upload request was sent
      */
     public static void handleResult(
+            JSONArray batch,
             UploadDocumentsResult result,
-            long lastUploadedTime) {
+            long requestTime) {
+        handleResult(batch, result, requestTime, null);
+    }
+
+    /**
+     * Handles the result of the upload. The outcome is recorded in the ledger, or added to the isolation the batch is
+     * a part of.
+     *
+     * @param batch The JSONArray object representing the batch that was uploaded
+     * @param result An UploadDocumentsResult object that represents the result of the upload
+     * @param requestTime Time the upload request was sent
+     * @param isolation The isolation of failures the batch was submitted for, or null
+     */
+    public static void handleResult(
+            JSONArray batch,
+            UploadDocumentsResult result,
+            long requestTime,
+            Ledger.Isolation isolation) {
+        long latency = System.currentTimeMillis() - requestTime;
+        if (isolation == null) {
+            Ledger.record(batch, result, latency);
+        } else {
+            isolation.record(batch, result);
+        }
         if (result.getStatus().equals("error")) {
             System.err.println(
                     DF_FULL.format(new Date()) +
@@ -53,31 +96,121 @@ public abstract class BaseUploader {
                     DF_FULL.format(new Date()) +
                             ": Upload success! HTTP Status Code = " + result.getSdkHttpMetadata().getHttpStatusCode() +
                             ", Adds = " + result.getAdds() +
-                            ", Upload took " + ((System.currentTimeMillis() - lastUploadedTime) / 1000) + "s");
+                            ", Upload took " + (latency / 1000) + "s");
         }
     }
 
     /**
-     * Creates a log file with the failed upload data.
+     * Returns whether the documents that caused a batch to be rejected should be isolated. Only errors about the
+     * documents are isolated. Server errors (HTTP 5xx) and errors about the request as a whole (For e.g.,
+     * authentication, throttling, a wrong endpoint or a batch too large) would reject every part of the batch, and
+     * every document would end up quarantined.
      *
-     * @param is InputStream with the upload data that failed.
-     * @throws IOException
+     * @param e The exception the batch was rejected with
+     * @return true if the failures should be isolated
      */
-    public static void writeToFile(InputStream is) throws IOException {
-        Path logFilePath;
+    public static boolean isIsolatable(Exception e) {
+        if (!ISOLATE_FAILURES || !(e instanceof DocumentServiceException)) {
+            return false;
+        }
+        int statusCode = ((DocumentServiceException) e).getStatusCode();
+        return statusCode < 500 && !BATCH_LEVEL_STATUS_CODES.contains(statusCode);
+    }
+
+    /**
+     * Waits until the next batch is allowed to be uploaded. Shared by all uploaders, so that batches resubmitted while
+     * isolating failures also count against the limit.
+     */
+    protected static synchronized void waitForUploadSlot() {
+        // Per AWS CloudSearch developer docs:
+        // Document batches are limited to one batch every 10 seconds and 5 MB per batch.
+        // So, wait for 10s before submitting another batch
+        long currentTime = System.currentTimeMillis();
+        if (currentTime - lastUploadedTime < INTERVAL_BETWEEN_BATCHES) {
+            StageEvents.ThrottleWait throttleEvent = new StageEvents.ThrottleWait();
+            throttleEvent.begin();
+            try {
+                Thread.sleep(INTERVAL_BETWEEN_BATCHES - (currentTime - lastUploadedTime));
+            } catch (InterruptedException e) {
+                System.err.println("Thread sleep failed");
+                e.printStackTrace();
+            }
+            throttleEvent.commit();
+        }
+        lastUploadedTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Writes a document that Cloudsearch rejected to the quarantine file in the log directory, with the error message,
+     * so that it can be fixed and uploaded separately.
+     *
+     * @param document The JSONObject representing the rejected document
+     * @param message Error message
+     */
+    public static synchronized void quarantine(
+            JSONObject document,
+            String message) {
+        System.err.println(
+                DF_FULL.format(new Date()) +
+                        ": Quarantined document " + document.optString("id") + ". Message = " + message);
+        JSONObject entry = new JSONObject();
+        entry.put("time", System.currentTimeMillis());
+        entry.put("id", document.optString("id"));
+        entry.put("error", message);
+        entry.put("document", document);
+        Path quarantinePath = getLogFilePath(DEFAULT_LOG_FILE_NAME_PREFIX + "_quarantine.jsonl");
+        try {
+            Files.createDirectories(quarantinePath.getParent());
+            try (BufferedWriter bw = Files.newBufferedWriter(
+                    quarantinePath,
+                    StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND)) {
+                bw.write(entry.toString());
+                bw.newLine();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to write to the quarantine file at " + quarantinePath);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the path of a file in the log directory.
+     *
+     * @param fileName Name of the file
+     * @return A Path object
+     */
+    public static Path getLogFilePath(String fileName) {
         if (CUSTOM_LOG_DIR == null || CUSTOM_LOG_DIR.trim().isEmpty()) {
-            logFilePath = Paths.get(
+            return Paths.get(
                     System.getProperty("user.home"),
                     "DatabaseToCloudsearch",
                     "logs",
-                    DEFAULT_LOG_FILE_NAME_PREFIX + "_upload_failure_" + System.currentTimeMillis() + ".json");
+                    fileName);
         } else {
-            logFilePath = Paths.get(
+            return Paths.get(
                     CUSTOM_LOG_DIR,
-                    DEFAULT_LOG_FILE_NAME_PREFIX + "_upload_failure_" + System.currentTimeMillis() + ".json");
+                    fileName);
         }
+    }
+
+    /**
+     * Creates a log file with the failed upload data.
+     *
+     * @param is InputStream with the upload data that failed.
+     * @throws IOException
+     */
+    public static void writeToFile(InputStream is) throws IOException {
+        Path logFilePath = getLogFilePath(
+                DEFAULT_LOG_FILE_NAME_PREFIX + "_upload_failure_" + System.currentTimeMillis() + ".json");
 
-        BufferedWriter bw = Files.newBufferedWriter(logFilePath, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        Files.createDirectories(logFilePath.getParent());
+        BufferedWriter bw = Files.newBufferedWriter(
+                logFilePath,
+                StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
         BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
         char[] charArray = new char[2048];
         while (br.read(charArray) != -1) {
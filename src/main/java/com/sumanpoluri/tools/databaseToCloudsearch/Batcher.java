@@ -3,6 +3,8 @@ package com.sumanpoluri.tools.databaseToCloudsearch;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Batches the documents and invokes the uploader when ready.
  */
@@ -13,7 +15,7 @@ public class Batcher {
     /**
      * Maximum 5 MB per batch allowed
      */
-    private static final Integer MAX_BATCH_SIZE = 5000000; // in bytes
+    static final Integer MAX_BATCH_SIZE = 5000000; // in bytes
     private static final String USE_ASYNC_PARAM = System.getProperty("USE_ASYNC");
     private static final Boolean USE_ASYNC = USE_ASYNC_PARAM != null && USE_ASYNC_PARAM.trim().equalsIgnoreCase("Y");
 
@@ -23,7 +25,9 @@ public class Batcher {
     private Integer batchesUploaded = 0;
     private Integer documentsUploaded = 0;
     private JSONArray batch;
-    private JSONArray batchOldVersion;
+    // Size of the batch in bytes, kept up to date as documents are added so that the batch is not serialized again for
+    // every document.
+    private int batchSize;
 
     //==================================================================================================================
     // Constructors
@@ -32,8 +36,7 @@ public class Batcher {
      * Main constructor
      */
     public Batcher() {
-        this.batch = new JSONArray();
-        this.batchOldVersion = new JSONArray();
+        clearBatch();
     }
 
     //==================================================================================================================
@@ -67,58 +70,117 @@ public class Batcher {
             String id,
             JSONObject fields) {
         // Final document. This is to ensure the last document is not missed.
-        if (id == null && Utils.getBatchSize(this.batch) > 0) {
-            // Upload batch
-            uploadBatch(
-                    this.batch,
-                    true);
+        if (id == null) {
+            if (Utils.getNumberOfDocsInBatch(this.batch) > 0) {
+                // Upload batch
+                uploadBatch(
+                        this.batch,
+                        true);
+                clearBatch();
+            } else {
+                done();
+            }
             return;
         }
 
-        // Build the document
+        // Build the document. It is serialized once here, only to find its size.
+        StageEvents.DocumentEncode event = new StageEvents.DocumentEncode();
+        event.begin();
         Document document = new Document(
                 "add",
                 id,
                 fields);
-        this.batch.put(document.toJSONObj());
+        JSONObject documentObj = document.toJSONObj();
+        int documentSize = documentObj.toString().getBytes(StandardCharsets.UTF_8).length;
+        event.bytes = documentSize;
+        event.commit();
+        if (documentSize + 2 > MAX_BATCH_SIZE) {
+            // No way to send a partial document. So error.
+            throw new RuntimeException("Document " + id + " size exceeded max allowed batch size");
+        }
+
+        // Separator between documents
+        int sizeWithDocument = this.batchSize + documentSize + (Utils.getNumberOfDocsInBatch(this.batch) > 0 ? 1 : 0);
+        if (sizeWithDocument > MAX_BATCH_SIZE) {
+            // Batch exceeds the max allowed size with the latest document.
+            // So, upload batch without the latest document.
+            uploadBatch(
+                    this.batch,
+                    false);
+
+            // Clear batch
+            clearBatch();
+            sizeWithDocument = this.batchSize + documentSize;
+        }
+
+        // Add latest document to batch
+        this.batch.put(documentObj);
+        this.batchSize = sizeWithDocument;
 
         // Try to get the batch as close to the max allowed size as possible.
-        // With a factor of 1.0, there is a risk of going beyond the max allowed size by a few bytes. Tweak this as
-        // needed.
-        if (Utils.getBatchSize(this.batch) > (MAX_BATCH_SIZE * 0.995)) {
-            if (Utils.getBatchSize(this.batch) > MAX_BATCH_SIZE) {
-                if (Utils.getBatchSize(this.batchOldVersion) > MAX_BATCH_SIZE) {
-                    // Batch is larger than max allowed size even without the last document.
-                    // So, sending the batch by excluding the latest document will not help in this case.
-                    // No way to send a partial batch. So error.
-                    throw new RuntimeException("Batch size exceeded max allowed size");
-                } else {
-                    // Batch exceeds the max allowed size with the latest document.
-                    // So, upload batch without the latest document.
-                    uploadBatch(
-                            this.batchOldVersion,
-                            false);
-
-                    // Clear batch
-                    this.batch = new JSONArray();
-
-                    // Add latest document to batch
-                    this.batch.put(document.toJSONObj());
-                }
-            } else {
-                // Upload batch
-                uploadBatch(
-                        this.batch,
-                        false);
+        if (this.batchSize > (MAX_BATCH_SIZE * 0.995)) {
+            // Upload batch
+            uploadBatch(
+                    this.batch,
+                    false);
 
-                // Clear batch
-                this.batch = new JSONArray();
-            }
+            // Clear batch
+            clearBatch();
+        }
+    }
+
+    /**
+     * Uploads the documents in the batch even though the batch has not reached the max allowed size. The uploader is
+     * kept open so that more documents can be added afterwards.
+     */
+    public void flush() {
+        if (Utils.getNumberOfDocsInBatch(this.batch) > 0) {
+            uploadBatch(
+                    this.batch,
+                    false);
+        }
+
+        // Clear batch
+        clearBatch();
+    }
+
+    /**
+     * Waits for the batches uploaded so far to finish. The default uploader finishes every batch before returning, but
+     * the asynchronous one does not.
+     *
+     * @throws RuntimeException the first failure of the asynchronous uploads since the last call
+     */
+    public void awaitUploads() {
+        if (USE_ASYNC) {
+            UploaderAsync.awaitUploads();
+        }
+    }
 
+    /**
+     * Drops the documents added since the last upload, For e.g., after an upload failed and the documents are going to
+     * be added again.
+     */
+    public void discard() {
+        clearBatch();
+    }
+
+    /**
+     * Shuts down the uploader, after the uploads in progress are finished.
+     */
+    private void done() {
+        if (USE_ASYNC) {
+            UploaderAsync.done();
+        } else {
+            Uploader.done();
         }
+    }
 
-        // Keep a copy of the batch
-        this.batchOldVersion = new JSONArray(this.batch.toString());
+    /**
+     * Starts a new empty batch.
+     */
+    private void clearBatch() {
+        this.batch = new JSONArray();
+        this.batchSize = 2; // brackets
     }
 
     /**
@@ -134,9 +196,9 @@ public class Batcher {
             UploaderAsync.uploadBatch(obj);
         } else {
             Uploader.uploadBatch(obj);
-            if (finalCall) {
-                Uploader.done();
-            }
+        }
+        if (finalCall) {
+            done();
         }
 
         batchesUploaded++;
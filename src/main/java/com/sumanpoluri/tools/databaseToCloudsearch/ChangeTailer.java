@@ -0,0 +1,513 @@
+package com.sumanpoluri.tools.databaseToCloudsearch;
+
+import com.amazonaws.services.cloudsearchdomain.model.DocumentServiceException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * Keeps running and uploads the rows that changed in the database since the last poll. The database connection, the
+ * prepared statement and the Cloudsearch client are kept open between polls.
+ * <p>
+ * Changes are held in a pending set until either the pending set reaches the flush size or the oldest pending change
+ * reaches the latency target, whichever comes first. Repeated changes to the same document while it is pending are
+ * merged, so that only the latest version of the document is uploaded.
+ * </p>
+ * <p>
+ * The multi-valued fields of the child queries (see ChildJoiner) are added when the pending changes are uploaded. The
+ * pending ids are split into runs of nearby ids, no more than TAIL_CHILD_RANGE_GAP apart, and the child queries read
+ * the range of each run, so that a few scattered changes do not read the child rows of all the ids in between.
+ * </p>
+ * <p>
+ * The change marker of the last change uploaded is saved to TAIL_MARKER_FILE after every upload, and the tailer
+ * resumes from it when it is started again, so that the changes made while it was stopped, and the changes that were
+ * pending when it stopped, are not missed.
+ * </p>
+ */
+public class ChangeTailer {
+    //==================================================================================================================
+    // Class fields
+    //==================================================================================================================
+    /**
+     * The SQL to poll for changed rows. Change this to your desired SQL. It must select the same fields as the SQL
+     * used for the full load, plus the change marker column (see CHANGE_MARKER_COLUMN), and it must take the following
+     * parameters, in order: last change marker, last change marker, last id.
+     * <p>
+     * The change marker can be an 'updated_at' column maintained by the application, or the sequence column of a
+     * trigger-maintained change-log table joined to the source table (For e.g., 'SELECT e.id, ..., c.change_id AS
+     * updated_at FROM employee_change c JOIN employee e ON e.id = c.employee_id ...'). A change-log table with an
+     * auto-increment sequence does not miss rows committed out of order, whereas an 'updated_at' column can.
+     * </p>
+     */
+    private static final String SQL_SELECT_CHANGES =
+            "SELECT " +
+                    "id, " +
+                    "first_name, " +
+                    "last_name, " +
+                    "date_of_birth, " +
+                    "join_date, " +
+                    "updated_at " +
+            "FROM " +
+                    "employee " +
+            "WHERE " +
+                    "updated_at > ? " +
+                    "OR (updated_at = ? AND id > ?) " +
+            "ORDER BY updated_at, id " +
+            "LIMIT 10000 ";
+    /**
+     * The SQL to find the change marker to start from when TAIL_START is omitted, and the last id at that marker. Only
+     * the changes made after the program is started are uploaded in that case.
+     */
+    private static final String SQL_SELECT_START_MARKER =
+            "SELECT " +
+                    "updated_at, " +
+                    "MAX(id) " +
+            "FROM " +
+                    "employee " +
+            "WHERE " +
+                    "updated_at = (SELECT MAX(updated_at) FROM employee) " +
+            "GROUP BY updated_at ";
+    private static final String CHANGE_MARKER_COLUMN = "updated_at";
+    private static final int POLL_LIMIT = 10000; // Must match the LIMIT of SQL_SELECT_CHANGES
+    private static final String TAIL_START = System.getProperty("TAIL_START");
+    private static final String TAIL_MARKER_FILE = System.getProperty("TAIL_MARKER_FILE");
+    private static final long POLL_INTERVAL = Utils.getLongProperty("TAIL_POLL_INTERVAL", 5000L); // in milliseconds
+    private static final long LATENCY_TARGET = Utils.getLongProperty("TAIL_LATENCY_TARGET", 30000L); // in milliseconds
+    private static final long FLUSH_SIZE = Utils.getLongProperty("TAIL_FLUSH_SIZE", 5000L); // in documents
+    private static final long CHILD_RANGE_GAP = Utils.getLongProperty("TAIL_CHILD_RANGE_GAP", 1000L); // in ids
+    private static final DateFormat DF_FULL = DateFormat.getDateTimeInstance(
+            DateFormat.FULL,
+            DateFormat.FULL,
+            Locale.US);
+
+    //==================================================================================================================
+    // Instance fields
+    //==================================================================================================================
+    private String user;
+    private String password;
+    private String host;
+    private String port;
+    private String database;
+    private Batcher batcher;
+    private Connection conn;
+    private PreparedStatement stmt;
+    private RowConverter rowConverter;
+    private Object lastMarker;
+    private long lastId = Long.MIN_VALUE;
+    private ChildJoiner childJoiner = new ChildJoiner();
+    private FetchSizer fetchSizer = new FetchSizer();
+    private LookupEnricher lookupEnricher = new LookupEnricher();
+    // Sorted by id, so that the child queries can be joined on flush.
+    private TreeMap<Long, ExtractedRow> pending = new TreeMap<>();
+    private long oldestPendingTime = 0L;
+    private long changesMerged = 0L;
+    private boolean flushFailed = false;
+    private final Object lock = new Object();
+    private volatile boolean running;
+
+    //==================================================================================================================
+    // Constructors
+    //==================================================================================================================
+    /**
+     * Main constructor
+     *
+     * @param user Username for the database
+     * @param password Password for the database
+     * @param host Hostname for the database
+     * @param port Port for the database
+     * @param database Name of the database
+     */
+    public ChangeTailer(
+            String user,
+            String password,
+            String host,
+            String port,
+            String database) {
+        this.user = user;
+        this.password = password;
+        this.host = host;
+        this.port = port;
+        this.database = database;
+        this.batcher = new Batcher();
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    /**
+     * Polls for changes and uploads them until stop() is called. A lost database connection is reopened on the next
+     * poll, and a failed upload is retried on the next poll, without losing the pending changes. No more changes are
+     * read while the pending set is full and its upload is failing.
+     * <p>
+     * A batch rejected with an error that cannot go away on its own (For e.g., a document the domain does not accept,
+     * without ISOLATE_FAILURES) stops the tailer, and so does a row that cannot be converted. The pending changes are
+     * then uploaded again on the next start, from the saved change marker.
+     * </p>
+     */
+    public void run() {
+        this.running = true;
+        boolean rejected = false;
+        try {
+            while (this.running) {
+                int rowsPolled = 0;
+                boolean failed = false;
+                try {
+                    if (this.conn == null) {
+                        connect();
+                    }
+                    // The pending set does not grow while it cannot be uploaded, For e.g., while the endpoint is down
+                    if (!this.flushFailed || this.pending.size() < FLUSH_SIZE) {
+                        rowsPolled = poll();
+                    }
+                } catch (SQLException e) {
+                    System.err.println(
+                            DF_FULL.format(new Date()) +
+                                    ": Poll failed, reconnecting on the next poll. Message = " + e.getMessage());
+                    disconnect();
+                    failed = true;
+                }
+
+                // The pending changes are kept until the connection is back, since the child queries need it.
+                if (this.conn != null && isFlushDue()) {
+                    try {
+                        flush();
+                    } catch (SQLException e) {
+                        System.err.println(
+                                DF_FULL.format(new Date()) +
+                                        ": Flush failed, retrying after reconnecting. Message = " + e.getMessage());
+                        this.batcher.discard();
+                        disconnect();
+                        failed = true;
+                    } catch (RuntimeException e) {
+                        this.batcher.discard();
+                        if (e instanceof DocumentServiceException && !UploadTransport.isRetryable(e)) {
+                            // Uploading the same documents again would be rejected again, on every poll
+                            System.err.println(
+                                    DF_FULL.format(new Date()) +
+                                            ": Upload rejected, stopping. " + this.pending.size() + " changed " +
+                                            "documents not uploaded. Message = " + e.getMessage());
+                            rejected = true;
+                            throw e;
+                        }
+                        // For e.g., an upload that still failed after its retries. Uploading the documents again only
+                        // replaces them, so the whole pending set is uploaded again on the next poll.
+                        System.err.println(
+                                DF_FULL.format(new Date()) +
+                                        ": Flush failed, " + this.pending.size() + " changed documents kept for the " +
+                                        "next poll. Message = " + e.getMessage());
+                        failed = true;
+                    }
+                    this.flushFailed = failed;
+                }
+
+                // Poll again right away if the last poll was cut off by the limit. Wait the full interval after a
+                // failure.
+                if (failed) {
+                    pause(POLL_INTERVAL);
+                } else if (rowsPolled < POLL_LIMIT) {
+                    long waitTime = POLL_INTERVAL;
+                    if (!this.pending.isEmpty()) {
+                        waitTime = Math.min(
+                                waitTime,
+                                Math.max(1L, this.oldestPendingTime + LATENCY_TARGET - System.currentTimeMillis()));
+                    }
+                    pause(waitTime);
+                }
+            }
+        } finally {
+            // Final call. This is to ensure the pending changes are not missed. Not after a rejection, which would
+            // only happen again.
+            if (!rejected && !this.pending.isEmpty()) {
+                try {
+                    if (this.conn == null) {
+                        connect();
+                    }
+                    flush();
+                } catch (SQLException | RuntimeException e) {
+                    this.batcher.discard();
+                    System.err.println(
+                            DF_FULL.format(new Date()) +
+                                    ": Final flush failed, " + this.pending.size() + " changed documents to be " +
+                                    "uploaded on the next start. Message = " + e.getMessage());
+                }
+            }
+            this.batcher.addDocument(null, null);
+            disconnect();
+
+            // Summary
+            System.out.println("-----------------------------");
+            System.out.println("Total batches uploaded   = " + this.batcher.getBatchesUploaded());
+            System.out.println("Total documents uploaded = " + this.batcher.getDocumentsUploaded());
+            System.out.println("Total changes merged     = " + this.changesMerged);
+            System.out.println("Total child rows joined  = " + this.childJoiner.getChildRowsJoined());
+            System.out.println("Total fields truncated   = " +
+                    (this.rowConverter == null ? 0 : this.rowConverter.getFieldsTruncated()));
+            System.out.println("-----------------------------");
+        }
+    }
+
+    /**
+     * Asks the tailer to upload the pending changes and return from run().
+     */
+    public void stop() {
+        this.running = false;
+        synchronized (this.lock) {
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * Opens the database connection and prepares the poll statement.
+     *
+     * @throws SQLException
+     */
+    private void connect() throws SQLException {
+        this.conn = Utils.getDBConnection(
+                this.user,
+                this.password,
+                this.host,
+                this.port,
+                this.database);
+        this.conn.setReadOnly(true);
+        this.stmt = this.conn.prepareStatement(SQL_SELECT_CHANGES);
+
+        if (this.lastMarker == null) {
+            if (TAIL_START != null && !TAIL_START.trim().isEmpty()) {
+                this.lastMarker = TAIL_START.trim();
+            } else if (Files.exists(getMarkerPath())) {
+                loadMarker();
+            } else {
+                Statement startStmt = this.conn.createStatement();
+                ResultSet rs = startStmt.executeQuery(SQL_SELECT_START_MARKER);
+                if (rs.next()) {
+                    // The rows already at the marker are not changes
+                    this.lastMarker = rs.getObject(1);
+                    this.lastId = rs.getLong(2);
+                }
+                startStmt.close();
+            }
+            if (this.lastMarker == null) {
+                // An empty table has no marker yet. Start from the beginning once rows show up. Change this if the
+                // change marker is not a timestamp.
+                this.lastMarker = new Timestamp(0L);
+            }
+            System.out.println(
+                    DF_FULL.format(new Date()) +
+                            ": Tailing changes after " + CHANGE_MARKER_COLUMN + " = " + this.lastMarker +
+                            (this.lastId == Long.MIN_VALUE ? "" : ", id = " + this.lastId));
+        }
+    }
+
+    /**
+     * Closes the database connection.
+     */
+    private void disconnect() {
+        this.childJoiner.close();
+        Utils.closeDBConnection(this.conn);
+        this.conn = null;
+        this.stmt = null;
+    }
+
+    /**
+     * Reads the changes made since the last poll into the pending set.
+     *
+     * @return Number of changed rows read
+     * @throws SQLException
+     */
+    private int poll() throws SQLException {
+        this.stmt.setObject(1, this.lastMarker);
+        this.stmt.setObject(2, this.lastMarker);
+        this.stmt.setLong(3, this.lastId);
+        this.stmt.setFetchSize(this.fetchSizer.getFetchSize());
+        this.lookupEnricher.refreshIfDue(this.conn);
+        ResultSet rs = this.stmt.executeQuery();
+        if (this.rowConverter == null) {
+            this.rowConverter = new RowConverter(rs.getMetaData(), CHANGE_MARKER_COLUMN);
+        }
+
+        int rows = 0;
+        while (StageEvents.fetchRow(rs)) {
+            if (this.pending.isEmpty()) {
+                this.oldestPendingTime = System.currentTimeMillis();
+            }
+            JSONObject fields = this.rowConverter.toFields(rs);
+            this.fetchSizer.rowFetched(rs, this.rowConverter.getRowBytes());
+            this.lookupEnricher.enrich(rs, fields, this.rowConverter);
+            ExtractedRow change = new ExtractedRow(
+                    rs.getLong("id"),
+                    fields,
+                    this.rowConverter.getRemainingBytes());
+            if (this.pending.put(change.getRowId(), change) != null) {
+                this.changesMerged++;
+            }
+            this.lastMarker = rs.getObject(CHANGE_MARKER_COLUMN);
+            this.lastId = rs.getLong("id");
+            rows++;
+        }
+        rs.close();
+        return rows;
+    }
+
+    /**
+     * Returns whether the pending changes must be uploaded now.
+     *
+     * @return true if the pending set reached the flush size or the oldest pending change reached the latency target
+     */
+    private boolean isFlushDue() {
+        if (this.pending.isEmpty()) {
+            return false;
+        }
+
+        return this.pending.size() >= FLUSH_SIZE ||
+                System.currentTimeMillis() - this.oldestPendingTime >= LATENCY_TARGET;
+    }
+
+    /**
+     * Uploads the pending changes.
+     *
+     * @throws SQLException
+     */
+    private void flush() throws SQLException {
+        System.out.println(
+                DF_FULL.format(new Date()) +
+                        ": Flushing " + this.pending.size() + " changed documents, oldest change pending for " +
+                        ((System.currentTimeMillis() - this.oldestPendingTime) / 1000) + "s");
+        if (this.childJoiner.hasChildren()) {
+            List<ExtractedRow> run = new ArrayList<>();
+            for (ExtractedRow change : this.pending.values()) {
+                if (!run.isEmpty() && change.getRowId() - run.get(run.size() - 1).getRowId() > CHILD_RANGE_GAP) {
+                    joinChildren(run);
+                    run.clear();
+                }
+                run.add(change);
+            }
+            joinChildren(run);
+        }
+
+        for (ExtractedRow change : this.pending.values()) {
+            this.batcher.addDocument(
+                    RowConverter.toId(change.getRowId()),
+                    change.getFields());
+        }
+        this.batcher.flush();
+        // The asynchronous uploader reports the failures of its uploads here, before the pending changes are dropped
+        this.batcher.awaitUploads();
+        this.pending.clear();
+        this.oldestPendingTime = 0L;
+        // Every change polled so far is uploaded
+        saveMarker();
+    }
+
+    /**
+     * Adds the multi-valued fields to a run of pending changes, with the child queries over the range of their ids.
+     *
+     * @param run Pending changes, sorted by id
+     * @throws SQLException
+     */
+    private void joinChildren(List<ExtractedRow> run) throws SQLException {
+        this.childJoiner.open(
+                this.conn,
+                run.get(0).getRowId() - 1,
+                run.get(run.size() - 1).getRowId());
+        for (ExtractedRow change : run) {
+            this.rowConverter.setRemainingBytes(change.getRemainingBytes());
+            this.childJoiner.join(
+                    change.getRowId(),
+                    change.getFields(),
+                    this.rowConverter);
+        }
+        this.childJoiner.close();
+    }
+
+    /**
+     * Returns the path of the file the change marker is saved to. Defaults to a file in the log directory.
+     *
+     * @return A Path object
+     */
+    private static Path getMarkerPath() {
+        if (TAIL_MARKER_FILE != null && !TAIL_MARKER_FILE.trim().isEmpty()) {
+            return Paths.get(TAIL_MARKER_FILE.trim());
+        }
+
+        return BaseUploader.getLogFilePath(BaseUploader.DEFAULT_LOG_FILE_NAME_PREFIX + "_tail_marker.json");
+    }
+
+    /**
+     * Reads the change marker and the id of the last change uploaded from the marker file. The marker is kept as text
+     * and passed to the poll SQL as is, like TAIL_START.
+     *
+     * @throws SQLException if the marker file cannot be read
+     */
+    private void loadMarker() throws SQLException {
+        Path markerPath = getMarkerPath();
+        try {
+            JSONObject saved = new JSONObject(new String(Files.readAllBytes(markerPath), StandardCharsets.UTF_8));
+            this.lastMarker = saved.getString("marker");
+            this.lastId = saved.getLong("id");
+        } catch (IOException | RuntimeException e) {
+            // Starting from anywhere else could skip changes or upload everything again
+            throw new SQLException("Failed to read the change marker from " + markerPath, e);
+        }
+    }
+
+    /**
+     * Saves the change marker and the id of the last change uploaded to the marker file. The file is replaced in one
+     * move, so that a crash never leaves a partial marker behind.
+     */
+    private void saveMarker() {
+        Path markerPath = getMarkerPath();
+        JSONObject saved = new JSONObject();
+        saved.put("marker", String.valueOf(this.lastMarker));
+        saved.put("id", this.lastId);
+        try {
+            if (markerPath.getParent() != null) {
+                Files.createDirectories(markerPath.getParent());
+            }
+            Path tempPath = markerPath.resolveSibling(markerPath.getFileName() + ".tmp");
+            try (BufferedWriter bw = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+                bw.write(saved.toString());
+            }
+            Files.move(tempPath, markerPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to save the change marker to " + markerPath);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Waits for the given time, or until stop() is called.
+     *
+     * @param waitTime Time to wait in milliseconds
+     */
+    private void pause(long waitTime) {
+        synchronized (this.lock) {
+            if (!this.running) {
+                return;
+            }
+            try {
+                this.lock.wait(waitTime);
+            } catch (InterruptedException e) {
+                this.running = false;
+            }
+        }
+    }
+
+}
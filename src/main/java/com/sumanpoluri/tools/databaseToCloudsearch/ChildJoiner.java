@@ -0,0 +1,283 @@
+package com.sumanpoluri.tools.databaseToCloudsearch;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Adds multi-valued (array) fields to the documents from child queries. Each child query is sorted by the parent id
+ * and read alongside the main query, which is sorted by id, so that the child rows of each document are picked up in a
+ * single pass without holding more than the current child row in memory.
+ */
+public class ChildJoiner {
+    //==================================================================================================================
+    // Class fields
+    //==================================================================================================================
+    /**
+     * The SQLs to extract the multi-valued fields. Change these to your desired SQLs. Each SQL must:
+     * <ul>
+     * <li>select the id of the parent document as 'parent_id', plus one column per array field (For e.g., 'skill AS
+     * skills' for a 'skills' literal-array field),</li>
+     * <li>take the following parameters, in order: id to start after, last id to include,</li>
+     * <li>be sorted by the parent id, in the same order as the main SQL is sorted by id.</li>
+     * </ul>
+     * For e.g.,
+     * <pre>
+     * "SELECT " +
+     *         "employee_id AS parent_id, " +
+     *         "skill AS skills " +
+     * "FROM " +
+     *         "employee_skill " +
+     * "WHERE " +
+     *         "employee_id &gt; ? AND employee_id &lt;= ? " +
+     * "ORDER BY employee_id "
+     * </pre>
+     * All child queries are kept open on the same connection as the main query. For MySQL, this needs the
+     * useCursorFetch connection property, which is set in Utils.getDBConnection.
+     */
+    private static final String[] SQL_SELECT_CHILDREN = {
+    };
+    private static final String PARENT_ID_COLUMN = "parent_id";
+
+    //==================================================================================================================
+    // Instance fields
+    //==================================================================================================================
+    private List<ChildCursor> cursors = new ArrayList<>();
+    // One per child query, since the child rows are not as wide as the rows of the main query
+    private List<FetchSizer> fetchSizers = new ArrayList<>();
+    private long childRowsJoined = 0L;
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    /**
+     * Returns whether any child queries are configured.
+     *
+     * @return true if there are child queries
+     */
+    public boolean hasChildren() {
+        return SQL_SELECT_CHILDREN.length > 0;
+    }
+
+    /**
+     * Returns the number of child rows added to documents so far.
+     *
+     * @return A long with the number of child rows
+     */
+    public long getChildRowsJoined() {
+        return this.childRowsJoined;
+    }
+
+    /**
+     * Runs the child queries for a range of parent ids.
+     *
+     * @param conn Database connection
+     * @param afterId Id to start after
+     * @param lastId Last id to include
+     * @throws SQLException
+     */
+    public void open(
+            Connection conn,
+            long afterId,
+            long lastId) throws SQLException {
+        close();
+        for (int i=0; i<SQL_SELECT_CHILDREN.length; i++) {
+            if (this.fetchSizers.size() <= i) {
+                this.fetchSizers.add(new FetchSizer());
+            }
+            FetchSizer fetchSizer = this.fetchSizers.get(i);
+            PreparedStatement stmt = conn.prepareStatement(SQL_SELECT_CHILDREN[i]);
+            stmt.setFetchSize(fetchSizer.getFetchSize());
+            stmt.setLong(1, afterId);
+            stmt.setLong(2, lastId);
+            ChildCursor cursor = new ChildCursor(stmt, stmt.executeQuery(), fetchSizer);
+            this.cursors.add(cursor);
+        }
+    }
+
+    /**
+     * Adds the array fields of a document from the child rows of the given parent id. Must be called with the parent
+     * ids in the order of the child queries. Values that do not fit in the room left in the document are left out.
+     *
+     * @param parentId Id of the parent document
+     * @param fields Fields of the parent document
+     * @param rowConverter Converter used for the parent document, which keeps track of the room left in it
+     * @throws SQLException
+     */
+    public void join(
+            long parentId,
+            JSONObject fields,
+            RowConverter rowConverter) throws SQLException {
+        StageEvents.ChildJoin event = new StageEvents.ChildJoin();
+        event.begin();
+        for (ChildCursor cursor : this.cursors) {
+            // Skip child rows without a parent in the main query
+            while (cursor.hasRow && cursor.parentId < parentId) {
+                cursor.next();
+            }
+
+            JSONArray[] values = new JSONArray[cursor.valueColNames.size()];
+            while (cursor.hasRow && cursor.parentId == parentId) {
+                long remainingBytes = rowConverter.getRemainingBytes();
+                for (int i=0; i<values.length; i++) {
+                    if (values[i] == null) {
+                        values[i] = new JSONArray();
+                    }
+                    addValue(cursor, i, values[i], rowConverter);
+                }
+                cursor.fetchSizer.rowFetched(cursor.rs, remainingBytes - rowConverter.getRemainingBytes());
+                this.childRowsJoined++;
+                cursor.next();
+            }
+
+            for (int i=0; i<values.length; i++) {
+                if (values[i] != null && values[i].length() > 0) {
+                    fields.put(
+                            cursor.valueColNames.get(i),
+                            values[i]);
+                }
+            }
+        }
+        event.commit();
+    }
+
+    /**
+     * Closes the child queries.
+     */
+    public void close() {
+        for (ChildCursor cursor : this.cursors) {
+            try {
+                cursor.stmt.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        this.cursors.clear();
+    }
+
+    /**
+     * Adds the value of a column of the current child row to its array field. The name and the brackets of the field
+     * are counted with its first value, so that nothing is counted for a field left out.
+     *
+     * @param cursor Child cursor positioned on the row
+     * @param index Index of the value column
+     * @param values Values of the array field so far
+     * @param rowConverter Converter used for the parent document
+     * @throws SQLException
+     */
+    private void addValue(
+            ChildCursor cursor,
+            int index,
+            JSONArray values,
+            RowConverter rowConverter) throws SQLException {
+        String colName = cursor.valueColNames.get(index);
+        // Name and brackets of the array
+        long fieldOverhead = values.length() == 0 ? RowConverter.getFieldOverhead(colName) + 2 : 0;
+        switch (cursor.valueColClassNames.get(index)) {
+            case "java.lang.String":
+            case "java.sql.Clob":
+                // Removes invalid characters from the string value.
+                String text;
+                try {
+                    text = rowConverter.readText(
+                            cursor.rs.getCharacterStream(colName),
+                            rowConverter.getRemainingBytes() - fieldOverhead - 1);
+                } catch (IOException e) {
+                    throw new SQLException("Failed to read field " + colName + " for id " + cursor.parentId, e);
+                }
+                if (text == null) {
+                    return;
+                }
+                values.put(text);
+                rowConverter.consume(fieldOverhead + Utils.getEncodedSize(text) + 1);
+                break;
+            default:
+                // Converted the same way as the columns of the main SQL (For e.g., timestamps per AWS Cloudsearch
+                // guidelines), so that array fields match the type of their index field.
+                Object value;
+                try {
+                    value = rowConverter.toValue(
+                            cursor.rs,
+                            colName,
+                            cursor.valueColClassNames.get(index));
+                } catch (SQLException e) {
+                    System.err.println("Conversion error on field " + colName + " for id " + cursor.parentId);
+                    throw e;
+                }
+                if (value == null || cursor.rs.wasNull()) {
+                    return;
+                }
+                // Only text and timestamps are quoted
+                int size = value instanceof String ?
+                        Utils.getEncodedSize((String) value) :
+                        String.valueOf(value).length();
+                // Separator between values
+                if (rowConverter.getRemainingBytes() < fieldOverhead + size + 1) {
+                    return;
+                }
+                values.put(value);
+                rowConverter.consume(fieldOverhead + size + 1);
+                break;
+        }
+    }
+
+    /**
+     * An open child query and its current row.
+     */
+    private static class ChildCursor {
+        //==============================================================================================================
+        // Instance fields
+        //==============================================================================================================
+        private PreparedStatement stmt;
+        private ResultSet rs;
+        private FetchSizer fetchSizer;
+        private List<String> valueColNames = new ArrayList<>();
+        private List<String> valueColClassNames = new ArrayList<>();
+        private boolean hasRow;
+        private long parentId;
+
+        //==============================================================================================================
+        // Constructors
+        //==============================================================================================================
+        ChildCursor(
+                PreparedStatement stmt,
+                ResultSet rs,
+                FetchSizer fetchSizer) throws SQLException {
+            this.stmt = stmt;
+            this.rs = rs;
+            this.fetchSizer = fetchSizer;
+            ResultSetMetaData meta = rs.getMetaData();
+            for (int i=1; i<=meta.getColumnCount(); i++) {
+                if (!meta.getColumnLabel(i).equalsIgnoreCase(PARENT_ID_COLUMN)) {
+                    this.valueColNames.add(meta.getColumnLabel(i));
+                    this.valueColClassNames.add(meta.getColumnClassName(i));
+                }
+            }
+            next();
+        }
+
+        //==============================================================================================================
+        // Methods
+        //==============================================================================================================
+        /**
+         * Moves to the next child row.
+         *
+         * @throws SQLException
+         */
+        void next() throws SQLException {
+            this.hasRow = this.rs.next();
+            if (this.hasRow) {
+                this.parentId = this.rs.getLong(PARENT_ID_COLUMN);
+            }
+        }
+    }
+
+}
@@ -3,12 +3,6 @@ package com.sumanpoluri.tools.databaseToCloudsearch;
 import org.json.JSONObject;
 
 import java.sql.*;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Properties;
 
 /**
  * Extracts the data from the database, converts it into a JSON format document and uploads the data through the Batcher
@@ -18,32 +12,6 @@ public class ExtractAndUpload {
     //==================================================================================================================
     // Class fields
     //==================================================================================================================
-    /**
-     * Per AWS CloudSearch developer docs:
-     * Dates and times are specified in UTC (Coordinated Universal Time) according to IETF RFC3339:
-     * yyyy-mm-ddTHH:mm:ss.SSSZ. In UTC, for example, 5:00 PM August 23, 1970 is: 1970-08-23T17:00:00Z. Note that you
-     * can also specify fractional seconds when specifying times in UTC. For example, 1967-01-31T23:20:50.650Z.
-     * <p>
-     * See https://docs.aws.amazon.com/cloudsearch/latest/developerguide/configuring-index-fields.html for more details.
-     * </p>
-     */
-    private static final String FORMAT_TIMESTAMP = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
-    private static final DateFormat TIMESTAMP_FORMATTER = new SimpleDateFormat(FORMAT_TIMESTAMP);
-    /**
-     * Per AWS CloudSearch developer docs:
-     * Both JSON and XML batches can only contain UTF-8 characters that are valid in XML. Valid characters are the
-     * control characters tab (0009), carriage return (000D), and line feed (000A), and the legal characters of Unicode
-     * and ISO/IEC 10646. FFFE, FFFF, and the surrogate blocks D800–DBFF and DC00–DFFF are invalid and will cause
-     * errors. (For more information, see Extensible Markup Language (XML) 1.0 (Fifth Edition).) You can use the
-     * following regular expression to match invalid characters so you can remove them:
-     * /[^\u0009\u000a\u000d\u0020-\uD7FF\uE000-\uFFFD]/ .
-     * <p>
-     * See https://docs.aws.amazon.com/cloudsearch/latest/developerguide/preparing-data.html for more details.
-     * </p>
-     */
-    private static final String REGEX_INVALID_UTF8 = "[^\\u0009\\u000a\\u000d\\u0020-\\uD7FF\\uE000-\\uFFFD]";
-    // A prefix to the document ID. This is optional. Change to blank if not needed.
-    private static final String DOCUMENT_ID_PREFIX = "di_";
     /**
      * The SQL to extract data to be loaded to AWS Cloudsearch. Change this to your desired SQL. For large amount of
      * data, use the optimization strategies for your database and JDBC driver.
@@ -63,6 +31,9 @@ public class ExtractAndUpload {
                     "employee " +
             "ORDER BY id " +
             "LIMIT 100000 ";
+    private static final String KEYSET_PAGINATION_PARAM = System.getProperty("KEYSET_PAGINATION");
+    private static final Boolean KEYSET_PAGINATION = KEYSET_PAGINATION_PARAM != null &&
+            KEYSET_PAGINATION_PARAM.trim().equalsIgnoreCase("Y");
 
     //==================================================================================================================
     // Instance fields
@@ -107,9 +78,19 @@ public class ExtractAndUpload {
      * Performs the extract and upload process.
      */
     public void run() {
+        if (KEYSET_PAGINATION) {
+            runPaginated();
+            return;
+        }
+
         Connection conn = null;
         try {
-            conn = getDBConnection();
+            conn = Utils.getDBConnection(
+                    this.user,
+                    this.password,
+                    this.host,
+                    this.port,
+                    this.database);
             if (conn == null) {
                 System.out.println("Unable to connect to the database");
                 return;
@@ -118,77 +99,39 @@ public class ExtractAndUpload {
             // For large amount of data, use the optimization strategies for your database and JDBC driver.
             // For e.g., see the 'ResultSet' section on this page for MySQL -
             // https://dev.mysql.com/doc/connector-j/5.1/en/connector-j-reference-implementation-notes.html
-            // This implementation does not perform any optimizations.
+            // The fetch size is adapted to the width of the rows by the FetchSizer.
             conn.setReadOnly(true);
             Statement stmt = conn.createStatement();
-            stmt.setFetchSize(1000);
+            FetchSizer fetchSizer = new FetchSizer();
+            stmt.setFetchSize(fetchSizer.getFetchSize());
+            // Lookup tables are read before the main SQL, which is then kept open on the same connection.
+            LookupEnricher lookupEnricher = new LookupEnricher();
+            lookupEnricher.loadIfNeeded(conn);
+
             ResultSet rs = stmt.executeQuery(SQL_SELECT_DATA);
 
             // Get column names from the SQL result
-            Map<String, String> colNamesMap = new HashMap<>();
-            ResultSetMetaData meta = rs.getMetaData();
-            for (int i=1; i<=meta.getColumnCount(); i++) {
-                colNamesMap.put(meta.getColumnName(i), meta.getColumnClassName(i));
-            }
+            RowConverter rowConverter = new RowConverter(rs.getMetaData());
+
+            // Multi-valued fields are read from the child queries alongside the SQL
+            ChildJoiner childJoiner = new ChildJoiner();
+            childJoiner.open(conn, Long.MIN_VALUE, Long.MAX_VALUE);
 
             // Get data frm the SQL
-            while (rs.next()) {
-                JSONObject fields = new JSONObject();
-                Iterator colIter = colNamesMap.entrySet().iterator();
-                while (colIter.hasNext()) {
-                    Map.Entry colEntry = (Map.Entry)colIter.next();
-                    switch ((String)colEntry.getValue()) {
-                        case "java.lang.Long":
-                            fields.put(
-                                    (String)colEntry.getKey(),
-                                    rs.getLong((String)colEntry.getKey()));
-                            break;
-                        case "java.lang.String":
-                            // Removes invalid characters from the string value.
-                            fields.put(
-                                    (String)colEntry.getKey(),
-                                    removeInvalidUTF8Chars(rs.getString((String)colEntry.getKey())));
-                            break;
-                        case "java.lang.Integer":
-                            // The name 'score' is reserved and cannot be specified as a field name for AWS Cloudsearch
-                            // indexes.
-                            // Any field from the SQL that has the name 'score' is replaced with 'score_' here. Change
-                            // this as needed.
-                            fields.put(
-                                    colEntry.getKey().equals("score")?"score_":(String)colEntry.getKey(),
-                                    rs.getInt((String)colEntry.getKey()));
-                            break;
-                        case "java.lang.Boolean":
-                            fields.put(
-                                    (String)colEntry.getKey(),
-                                    rs.getBoolean((String)colEntry.getKey()));
-                            break;
-                        case "java.sql.Timestamp":
-                            // Timestamps must be formatted per AWS Cloudsearch guidelines.
-                            try {
-                                fields.put(
-                                        (String) colEntry.getKey(),
-                                        TIMESTAMP_FORMATTER.format(rs.getTimestamp((String) colEntry.getKey())));
-                            } catch (SQLException e) {
-                                System.err.println("Timestamp error on field " + colEntry.getKey() +
-                                        " for id " + rs.getLong("id"));
-                                throw e;
-                            }
-                            break;
-                        default:
-                            fields.put(
-                                    (String)colEntry.getKey(),
-                                    rs.getString((String)colEntry.getKey()));
-                            break;
-                    }
-                }
+            while (StageEvents.fetchRow(rs)) {
+                JSONObject fields = rowConverter.toFields(rs);
+                fetchSizer.rowFetched(rs, rowConverter.getRowBytes());
+                lookupEnricher.enrich(rs, fields, rowConverter);
+                childJoiner.join(rs.getLong("id"), fields, rowConverter);
 
                 // A unique ID for the document. This is required.
-                String id = DOCUMENT_ID_PREFIX + rs.getInt("id");
+                String id = rowConverter.toId(rs);
                 this.batcher.addDocument(id, fields);
                 //System.out.println(fields);
             }
 
+            childJoiner.close();
+
             // Final call. This is to ensure the last document is not missed.
             this.batcher.addDocument(null, null);
 
@@ -196,65 +139,79 @@ public class ExtractAndUpload {
             System.out.println("-----------------------------");
             System.out.println("Total batches uploaded   = " + this.batcher.getBatchesUploaded());
             System.out.println("Total documents uploaded = " + this.batcher.getDocumentsUploaded());
+            System.out.println("Total child rows joined  = " + childJoiner.getChildRowsJoined());
+            System.out.println("Total fields truncated   = " + rowConverter.getFieldsTruncated());
+            System.out.println("Total lookup misses      = " + lookupEnricher.getLookupMisses());
+            System.out.println("Final fetch size         = " + fetchSizer.getFetchSize());
+            System.out.println("Average row size         = " + Math.round(fetchSizer.getAverageRowSize()) + " bytes");
             System.out.println("-----------------------------");
 
         } catch (SQLException e) {
             e.printStackTrace();
         } finally {
-            closeDBConnection(conn);
+            Utils.closeDBConnection(conn);
         }
     }
 
     /**
-     * Acquire database connection.
-     *
-     * @return A java.sql.Connection object
-     * @throws SQLException
+     * Performs the extract and upload process with keyset pagination. The pages are fetched by a PageFetcher on its
+     * own thread and connection, one page ahead of the page being uploaded.
      */
-    private Connection getDBConnection() throws SQLException {
-        Connection conn = null;
-        Properties connProps = new Properties();
-        connProps.put("user", this.user);
-        connProps.put("password", this.password);
+    private void runPaginated() {
+        PageFetcher pageFetcher = new PageFetcher(
+                this.user,
+                this.password,
+                this.host,
+                this.port,
+                this.database);
+        Thread fetcherThread = new Thread(pageFetcher, "PageFetcher");
+        fetcherThread.setDaemon(true);
+        fetcherThread.start();
+        try {
+            PageFetcher.Page page;
+            do {
+                page = pageFetcher.take();
+                // Failures of the fetcher are thrown here, the same as they would be by a single query
+                Exception error = page.getError();
+                if (error instanceof SQLException) {
+                    throw (SQLException) error;
+                } else if (error instanceof RuntimeException) {
+                    throw (RuntimeException) error;
+                } else if (error != null) {
+                    throw new RuntimeException(error);
+                }
+                for (ExtractedRow row : page.getRows()) {
+                    this.batcher.addDocument(
+                            RowConverter.toId(row.getRowId()),
+                            row.getFields());
+                }
+            } while (!page.isLast());
+            fetcherThread.join();
 
-        // Build the url of the DB connection.
-        // This example shows how to build a MySQL URL with some sample connection properties at the end of the url
-        // string (e.g. characterEncoding, useCursorFetch, etc.). Change them as needed.
-        String url = "jdbc:mysql://" +
-                this.host + ":" +
-                this.port + "/" +
-                this.database + "?useUnicode=yes&useAffectedRows=true&characterEncoding=utf-8&useCursorFetch=true";
-        conn = DriverManager.getConnection(url, connProps);
-        return conn;
-    }
+            // Final call. This is to ensure the last document is not missed.
+            this.batcher.addDocument(null, null);
 
-    /**
-     * Close database connection.
-     *
-     * @param conn A java.sql.Connection object
-     */
-    private void closeDBConnection(Connection conn) {
-        if (conn != null) {
-            try {
-                conn.close();
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
-        }
-    }
+            // Summary
+            System.out.println("-----------------------------");
+            System.out.println("Total batches uploaded   = " + this.batcher.getBatchesUploaded());
+            System.out.println("Total documents uploaded = " + this.batcher.getDocumentsUploaded());
+            System.out.println("Total pages fetched      = " + pageFetcher.getPagesFetched());
+            System.out.println("Final page size          = " + pageFetcher.getPageSize());
+            System.out.println("Total child rows joined  = " + pageFetcher.getChildRowsJoined());
+            System.out.println("Total fields truncated   = " + pageFetcher.getFieldsTruncated());
+            System.out.println("Total lookup misses      = " + pageFetcher.getLookupMisses());
+            System.out.println("Final fetch size         = " + pageFetcher.getFetchSizer().getFetchSize());
+            System.out.println("Average row size         = " +
+                    Math.round(pageFetcher.getFetchSizer().getAverageRowSize()) + " bytes");
+            System.out.println("-----------------------------");
 
-    /**
-     * Replaces invalid characters in the string with a space.
-     *
-     * @param input Input string.
-     * @return A String object with the invalid characters replaced with a space.
-     */
-    private String removeInvalidUTF8Chars(String input) {
-        if (input == null) {
-            return input;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            fetcherThread.interrupt();
         }
-
-        return input.replaceAll(REGEX_INVALID_UTF8, " ");
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,51 @@
+package com.sumanpoluri.tools.databaseToCloudsearch;
+
+import org.json.JSONObject;
+
+/**
+ * A row converted into the fields of a document, held until it is added to a batch.
+ */
+public class ExtractedRow {
+    //==================================================================================================================
+    // Instance fields
+    //==================================================================================================================
+    private long rowId;
+    private JSONObject fields;
+    // Room left in the document for the multi-valued fields
+    private long remainingBytes;
+
+    //==================================================================================================================
+    // Constructors
+    //==================================================================================================================
+    /**
+     * Main constructor
+     *
+     * @param rowId Value of the 'id' column of the row
+     * @param fields A JSONObject containing the fields and data to build the document
+     * @param remainingBytes Number of bytes still available in the document
+     */
+    public ExtractedRow(
+            long rowId,
+            JSONObject fields,
+            long remainingBytes) {
+        this.rowId = rowId;
+        this.fields = fields;
+        this.remainingBytes = remainingBytes;
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    public long getRowId() {
+        return rowId;
+    }
+
+    public JSONObject getFields() {
+        return fields;
+    }
+
+    public long getRemainingBytes() {
+        return remainingBytes;
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.sumanpoluri.tools.databaseToCloudsearch;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Sizes the JDBC fetches from the width of the rows seen so far, so that each fetch holds about FETCH_MEMORY_BUDGET
+ * bytes of data whether the table has a few narrow columns or large text columns.
+ * <p>
+ * The first fetch uses FETCH_SIZE rows. At the end of each fetch, the average size of its rows (as encoded in the
+ * documents) is measured and the fetch size of the result set is set to the number of such rows that fit in the
+ * budget, within FETCH_SIZE_MIN and FETCH_SIZE_MAX. The fetch size is only a hint to the JDBC driver; drivers that
+ * ignore it, or cannot change it on an open result set, get the new size on the next statement executed.
+ * </p>
+ */
+public class FetchSizer {
+    //==================================================================================================================
+    // Class fields
+    //==================================================================================================================
+    private static final long FETCH_MEMORY_BUDGET = Utils.getLongProperty("FETCH_MEMORY_BUDGET", 16777216L); // in bytes
+    private static final long FETCH_SIZE = Utils.getLongProperty("FETCH_SIZE", 100L); // in rows
+    private static final long FETCH_SIZE_MIN = Utils.getLongProperty("FETCH_SIZE_MIN", 10L); // in rows
+    private static final long FETCH_SIZE_MAX = Utils.getLongProperty("FETCH_SIZE_MAX", 100000L); // in rows
+
+    //==================================================================================================================
+    // Instance fields
+    //==================================================================================================================
+    private int fetchSize = (int) Math.max(1L, Math.min(Integer.MAX_VALUE, FETCH_SIZE));
+    private long windowRows = 0L;
+    private long windowBytes = 0L;
+    private double averageRowSize = -1.0;
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    /**
+     * Returns the fetch size to set on a statement before it is executed.
+     *
+     * @return An int with the number of rows
+     */
+    public int getFetchSize() {
+        return this.fetchSize;
+    }
+
+    /**
+     * Returns the average size of the rows of the last fetch, or -1 if no fetch has been measured yet.
+     *
+     * @return A double with the number of bytes
+     */
+    public double getAverageRowSize() {
+        return this.averageRowSize;
+    }
+
+    /**
+     * Returns the memory budget of a fetch.
+     *
+     * @return A long with the number of bytes
+     */
+    public long getMemoryBudget() {
+        return FETCH_MEMORY_BUDGET;
+    }
+
+    /**
+     * Returns the number of rows of the average size that fit in the memory budget, or Long.MAX_VALUE if no fetch has
+     * been measured yet. Never less than FETCH_SIZE_MIN.
+     *
+     * @return A long with the number of rows
+     */
+    public long getRowsWithinBudget() {
+        if (this.averageRowSize <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(FETCH_SIZE_MIN, (long) (FETCH_MEMORY_BUDGET / this.averageRowSize));
+    }
+
+    /**
+     * Records the size of a row just read and, at the end of a fetch, resizes the next fetches of the result set.
+     *
+     * @param rs Result set the row was read from
+     * @param rowBytes Size of the row as encoded in the document
+     */
+    public void rowFetched(
+            ResultSet rs,
+            long rowBytes) {
+        this.windowRows++;
+        this.windowBytes += Math.max(1L, rowBytes);
+        if (this.windowRows < this.fetchSize) {
+            return;
+        }
+
+        this.averageRowSize = this.windowBytes / (double) this.windowRows;
+        this.windowRows = 0L;
+        this.windowBytes = 0L;
+        int newFetchSize = (int) Math.min(FETCH_SIZE_MAX, Math.min(Integer.MAX_VALUE, getRowsWithinBudget()));
+        if (newFetchSize != this.fetchSize) {
+            // Statements executed later start with the new size even if the driver cannot resize the open result set
+            this.fetchSize = newFetchSize;
+            try {
+                rs.setFetchSize(newFetchSize);
+            } catch (SQLException e) {
+                // The driver does not support changing the fetch size of an open result set
+            }
+        }
+    }
+
+}
@@ -0,0 +1,492 @@
+package com.sumanpoluri.tools.databaseToCloudsearch;
+
+import com.amazonaws.services.cloudsearchdomain.model.DocumentServiceWarning;
+import com.amazonaws.services.cloudsearchdomain.model.UploadDocumentsResult;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Append-only record of the outcome of every batch upload. Each line of the ledger file is a JSON object with the time,
+ * the first and last document IDs of the batch, the number of documents sent, the adds and deletes acknowledged by
+ * Cloudsearch, the latency and the warnings, mapped back to the document IDs where possible.
+ * <p>
+ * The ledger is read back with RUN_MODE=LEDGER to list the batches and documents that need to be uploaded again.
+ * </p>
+ * <p>
+ * The submissions made while isolating the failures of a rejected batch are not recorded one by one. Their outcome is
+ * recorded against the rejected batch once the isolation ends, so that the ledger still has one entry per batch.
+ * </p>
+ */
+public class Ledger {
+    //==================================================================================================================
+    // Class fields
+    //==================================================================================================================
+    private static final String LEDGER_FILE = System.getProperty("LEDGER_FILE");
+    private static final String LEDGER_QUERY_ID = System.getProperty("LEDGER_QUERY_ID");
+    /**
+     * Cloudsearch warnings end with the position of the document in the batch and, when known, its ID. For e.g.,
+     * "... (near operation with index 3; document_id di_42)".
+     */
+    private static final Pattern WARNING_DOCUMENT_ID = Pattern.compile("document_id\\s+([^\\s;)]+)");
+    private static final Pattern WARNING_INDEX = Pattern.compile("operation with index\\s+(\\d+)");
+    private static final Pattern TRAILING_NUMBER = Pattern.compile("^(.*?)(\\d+)$");
+    // Status of a rejected batch whose failures were isolated
+    private static final String STATUS_ISOLATED = "isolated";
+    private static final DateFormat DF_FULL = DateFormat.getDateTimeInstance(
+            DateFormat.FULL,
+            DateFormat.FULL,
+            Locale.US);
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    /**
+     * Records the result of a batch upload.
+     *
+     * @param batch The JSONArray object representing the batch that was uploaded
+     * @param result An UploadDocumentsResult object that represents the result of the upload
+     * @param latency Time the upload took, in milliseconds
+     */
+    public static void record(
+            JSONArray batch,
+            UploadDocumentsResult result,
+            long latency) {
+        JSONObject entry = newEntry(batch, result.getStatus(), latency);
+        entry.put("adds", result.getAdds() == null ? 0L : result.getAdds());
+        entry.put("deletes", result.getDeletes() == null ? 0L : result.getDeletes());
+        JSONArray warnings = new JSONArray();
+        if (result.getWarnings() != null) {
+            for (DocumentServiceWarning warning : result.getWarnings()) {
+                warnings.put(toWarning(batch, warning.getMessage()));
+            }
+        }
+        entry.put("warnings", warnings);
+        append(entry);
+    }
+
+    /**
+     * Records a batch upload that failed with an exception. None of the documents in the batch are acknowledged.
+     *
+     * @param batch The JSONArray object representing the batch that failed
+     * @param message Message of the exception
+     * @param latency Time until the upload failed, in milliseconds
+     */
+    public static void recordFailure(
+            JSONArray batch,
+            String message,
+            long latency) {
+        JSONObject entry = newEntry(batch, "exception", latency);
+        entry.put("adds", 0L);
+        entry.put("deletes", 0L);
+        JSONArray warnings = new JSONArray();
+        warnings.put(toWarning(batch, message));
+        entry.put("warnings", warnings);
+        append(entry);
+    }
+
+    /**
+     * Prints a summary of the ledger: totals, failed batches and documents with warnings. If LEDGER_QUERY_ID is given,
+     * prints the entries of the batches that contained that document instead.
+     */
+    public static void printSummary() {
+        Path ledgerPath = getLedgerPath();
+        if (!Files.exists(ledgerPath)) {
+            System.out.println("No ledger found at " + ledgerPath);
+            return;
+        }
+
+        long batches = 0L;
+        long documentsSent = 0L;
+        long adds = 0L;
+        long deletes = 0L;
+        long quarantined = 0L;
+        long warningsCount = 0L;
+        long totalLatency = 0L;
+        long maxLatency = 0L;
+        Set<String> failedRanges = new LinkedHashSet<>();
+        Set<String> documentsWithWarnings = new LinkedHashSet<>();
+        boolean query = LEDGER_QUERY_ID != null && !LEDGER_QUERY_ID.trim().isEmpty();
+        try (BufferedReader br = Files.newBufferedReader(ledgerPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                JSONObject entry = new JSONObject(line);
+                if (query) {
+                    if (containsId(entry, LEDGER_QUERY_ID.trim())) {
+                        System.out.println(line);
+                    }
+                    continue;
+                }
+
+                batches++;
+                documentsSent += entry.optLong("docs");
+                adds += entry.optLong("adds");
+                deletes += entry.optLong("deletes");
+                quarantined += entry.optLong("quarantined");
+                totalLatency += entry.optLong("latencyMs");
+                maxLatency = Math.max(maxLatency, entry.optLong("latencyMs"));
+                JSONArray warnings = entry.optJSONArray("warnings");
+                if (warnings != null) {
+                    warningsCount += warnings.length();
+                    for (int i=0; i<warnings.length(); i++) {
+                        String id = warnings.getJSONObject(i).optString("id", null);
+                        if (id != null) {
+                            documentsWithWarnings.add(id);
+                        }
+                    }
+                }
+                // Quarantined documents are accounted for, in the quarantine file
+                boolean completed = entry.optString("status").equals("success") ||
+                        entry.optString("status").equals(STATUS_ISOLATED);
+                if (!completed || entry.optLong("adds") + entry.optLong("deletes") + entry.optLong("quarantined") <
+                        entry.optLong("docs")) {
+                    failedRanges.add(entry.optString("firstId") + " .. " + entry.optString("lastId") +
+                            " (" + entry.optString("status") + ", " +
+                            DF_FULL.format(new Date(entry.optLong("time"))) + ")");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read the ledger at " + ledgerPath);
+            e.printStackTrace();
+            return;
+        }
+
+        if (query) {
+            return;
+        }
+
+        System.out.println("-----------------------------");
+        System.out.println("Ledger                   = " + ledgerPath);
+        System.out.println("Total batches            = " + batches);
+        System.out.println("Total documents sent     = " + documentsSent);
+        System.out.println("Total adds acknowledged  = " + adds);
+        System.out.println("Total deletes ack'd      = " + deletes);
+        System.out.println("Total quarantined        = " + quarantined);
+        System.out.println("Total warnings           = " + warningsCount);
+        System.out.println("Average latency          = " + (batches == 0 ? 0 : totalLatency / batches) + "ms");
+        System.out.println("Max latency              = " + maxLatency + "ms");
+        System.out.println("-----------------------------");
+        System.out.println("Batches not fully acknowledged (first id .. last id):");
+        for (String range : failedRanges) {
+            System.out.println("  " + range);
+        }
+        System.out.println("Documents with warnings:");
+        for (String id : documentsWithWarnings) {
+            System.out.println("  " + id);
+        }
+    }
+
+    /**
+     * Returns the path of the ledger file. Defaults to a file in the log directory.
+     *
+     * @return A Path object
+     */
+    private static Path getLedgerPath() {
+        if (LEDGER_FILE != null && !LEDGER_FILE.trim().isEmpty()) {
+            return Paths.get(LEDGER_FILE.trim());
+        }
+
+        return BaseUploader.getLogFilePath(BaseUploader.DEFAULT_LOG_FILE_NAME_PREFIX + "_ledger.jsonl");
+    }
+
+    /**
+     * Builds the common part of a ledger entry.
+     *
+     * @param batch The JSONArray object representing the batch
+     * @param status Status of the upload
+     * @param latency Time the upload took, in milliseconds
+     * @return A JSONObject with the entry
+     */
+    private static JSONObject newEntry(
+            JSONArray batch,
+            String status,
+            long latency) {
+        JSONObject entry = new JSONObject();
+        entry.put("time", System.currentTimeMillis());
+        entry.put("status", status);
+        entry.put("firstId", getDocumentId(batch, 0));
+        entry.put("lastId", getDocumentId(batch, batch.length() - 1));
+        entry.put("docs", batch.length());
+        entry.put("latencyMs", latency);
+        return entry;
+    }
+
+    /**
+     * Maps a warning back to the ID of the document it is about, where the message allows it.
+     *
+     * @param batch The JSONArray object representing the batch
+     * @param message Message of the warning
+     * @return A JSONObject with the ID, if found, and the message
+     */
+    private static JSONObject toWarning(
+            JSONArray batch,
+            String message) {
+        JSONObject warning = new JSONObject();
+        String id = null;
+        if (message != null) {
+            Matcher matcher = WARNING_DOCUMENT_ID.matcher(message);
+            if (matcher.find()) {
+                id = matcher.group(1);
+            } else {
+                id = getDocumentId(batch, findDocumentIndex(batch, message));
+            }
+        }
+        warning.put("id", id);
+        warning.put("message", message);
+        return warning;
+    }
+
+    /**
+     * Returns the position in the batch of the document a warning or error message is about.
+     *
+     * @param batch The JSONArray object representing the batch
+     * @param message Message of the warning or error
+     * @return The position of the document, or -1 if the message does not name a document in the batch
+     */
+    public static int findDocumentIndex(
+            JSONArray batch,
+            String message) {
+        if (message == null) {
+            return -1;
+        }
+
+        Matcher matcher = WARNING_DOCUMENT_ID.matcher(message);
+        if (matcher.find()) {
+            for (int i=0; i<batch.length(); i++) {
+                if (matcher.group(1).equals(getDocumentId(batch, i))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        matcher = WARNING_INDEX.matcher(message);
+        if (matcher.find() && matcher.group(1).length() < 10) {
+            // The index is 1-based
+            int index = Integer.parseInt(matcher.group(1)) - 1;
+            return index < batch.length() ? index : -1;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the ID of the document at the given position in the batch.
+     *
+     * @param batch The JSONArray object representing the batch
+     * @param index Position of the document
+     * @return A String with the ID, or null if there is no document at that position
+     */
+    private static String getDocumentId(
+            JSONArray batch,
+            int index) {
+        if (index < 0 || index >= batch.length()) {
+            return null;
+        }
+
+        return batch.getJSONObject(index).optString("id", null);
+    }
+
+    /**
+     * Returns whether the batch of a ledger entry contained the given document ID. IDs with the same prefix are
+     * compared by their trailing number, so that 'di_9' falls between 'di_1' and 'di_10'.
+     *
+     * @param entry Ledger entry
+     * @param id Document ID
+     * @return true if the document is in the range of the batch or has a warning in it
+     */
+    private static boolean containsId(
+            JSONObject entry,
+            String id) {
+        JSONArray warnings = entry.optJSONArray("warnings");
+        if (warnings != null) {
+            for (int i=0; i<warnings.length(); i++) {
+                if (id.equals(warnings.getJSONObject(i).optString("id", null))) {
+                    return true;
+                }
+            }
+        }
+
+        String firstId = entry.optString("firstId", null);
+        String lastId = entry.optString("lastId", null);
+        return firstId != null && lastId != null && compareIds(firstId, id) <= 0 && compareIds(id, lastId) <= 0;
+    }
+
+    /**
+     * Compares two document IDs.
+     *
+     * @param id1 Document ID
+     * @param id2 Document ID
+     * @return A negative number, zero or a positive number as id1 is less than, equal to or greater than id2
+     */
+    private static int compareIds(
+            String id1,
+            String id2) {
+        Matcher matcher1 = TRAILING_NUMBER.matcher(id1);
+        Matcher matcher2 = TRAILING_NUMBER.matcher(id2);
+        if (matcher1.matches() && matcher2.matches() && matcher1.group(1).equals(matcher2.group(1)) &&
+                matcher1.group(2).length() < 19 && matcher2.group(2).length() < 19) {
+            return Long.compare(Long.parseLong(matcher1.group(2)), Long.parseLong(matcher2.group(2)));
+        }
+
+        return id1.compareTo(id2);
+    }
+
+    /**
+     * Appends an entry to the ledger.
+     *
+     * @param entry Ledger entry
+     */
+    private static synchronized void append(JSONObject entry) {
+        Path ledgerPath = getLedgerPath();
+        try {
+            if (ledgerPath.getParent() != null) {
+                Files.createDirectories(ledgerPath.getParent());
+            }
+            try (BufferedWriter bw = Files.newBufferedWriter(
+                    ledgerPath,
+                    StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND)) {
+                bw.write(entry.toString());
+                bw.newLine();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to write to the ledger at " + ledgerPath);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The outcome of the isolation of the failures of a rejected batch, gathered over the submissions of its parts and
+     * recorded as a single entry for the rejected batch.
+     */
+    public static class Isolation {
+        //==============================================================================================================
+        // Instance fields
+        //==============================================================================================================
+        private JSONArray batch;
+        private long startTime = System.currentTimeMillis();
+        private long adds = 0L;
+        private long deletes = 0L;
+        private long quarantined = 0L;
+        private int submissions = 0;
+        private int rejections = 0;
+        private JSONArray warnings = new JSONArray();
+
+        //==============================================================================================================
+        // Constructors
+        //==============================================================================================================
+        /**
+         * Main constructor
+         *
+         * @param batch The JSONArray object representing the rejected batch
+         */
+        public Isolation(JSONArray batch) {
+            this.batch = batch;
+        }
+
+        //==============================================================================================================
+        // Methods
+        //==============================================================================================================
+        /**
+         * Counts a submission of a part of the batch.
+         *
+         * @return An int with the number of submissions so far
+         */
+        public synchronized int submitted() {
+            return ++this.submissions;
+        }
+
+        /**
+         * Counts a part of the batch that was rejected.
+         *
+         * @return An int with the number of parts rejected so far
+         */
+        public synchronized int rejected() {
+            return ++this.rejections;
+        }
+
+        /**
+         * Returns whether any part of the batch was accepted so far.
+         *
+         * @return true if a part was accepted
+         */
+        public synchronized boolean isAnyAccepted() {
+            return this.submissions > this.rejections;
+        }
+
+        /**
+         * Adds the result of a part of the batch that was accepted.
+         *
+         * @param part The JSONArray object representing the part that was uploaded
+         * @param result An UploadDocumentsResult object that represents the result of the upload
+         */
+        public synchronized void record(
+                JSONArray part,
+                UploadDocumentsResult result) {
+            this.adds += result.getAdds() == null ? 0L : result.getAdds();
+            this.deletes += result.getDeletes() == null ? 0L : result.getDeletes();
+            if (result.getWarnings() != null) {
+                for (DocumentServiceWarning warning : result.getWarnings()) {
+                    this.warnings.put(toWarning(part, warning.getMessage()));
+                }
+            }
+        }
+
+        /**
+         * Adds a document that was quarantined.
+         *
+         * @param document The JSONObject representing the document
+         * @param message Error message
+         */
+        public synchronized void quarantined(
+                JSONObject document,
+                String message) {
+            this.quarantined++;
+            JSONObject warning = new JSONObject();
+            warning.put("id", document.optString("id", null));
+            warning.put("message", message);
+            this.warnings.put(warning);
+        }
+
+        /**
+         * Records the outcome against the rejected batch.
+         *
+         * @param error Message of the error the isolation was stopped by, or null if it was completed
+         */
+        public synchronized void finish(String error) {
+            JSONObject entry = newEntry(
+                    this.batch,
+                    error == null ? STATUS_ISOLATED : "exception",
+                    System.currentTimeMillis() - this.startTime);
+            entry.put("adds", this.adds);
+            entry.put("deletes", this.deletes);
+            entry.put("quarantined", this.quarantined);
+            entry.put("submissions", this.submissions);
+            if (error != null) {
+                this.warnings.put(toWarning(this.batch, error));
+            }
+            entry.put("warnings", this.warnings);
+            append(entry);
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package com.sumanpoluri.tools.databaseToCloudsearch;
+
+/**
+ * A map from primitive long keys to objects, with open addressing and linear probing. The keys are kept in a long
+ * array instead of being boxed into Long objects and map entries, which keeps large lookup tables small and their
+ * probes cheap. Null values are not supported.
+ *
+ * @param <V> Type of the values
+ */
+public class LongObjectMap<V> {
+    //==================================================================================================================
+    // Class fields
+    //==================================================================================================================
+    private static final int MIN_CAPACITY = 16;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    //==================================================================================================================
+    // Instance fields
+    //==================================================================================================================
+    private long[] keys;
+    // A null value marks a free slot
+    private Object[] values;
+    private int size = 0;
+    private int shift;
+
+    //==================================================================================================================
+    // Constructors
+    //==================================================================================================================
+    /**
+     * Main constructor
+     *
+     * @param expectedSize Number of entries expected, to avoid growing the map while it is filled
+     */
+    public LongObjectMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2L && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    /**
+     * Returns the value of a key.
+     *
+     * @param key Key
+     * @return The value, or null if the key is not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int mask = this.keys.length - 1;
+        for (int i=slot(key); this.values[i] != null; i=(i + 1) & mask) {
+            if (this.keys[i] == key) {
+                return (V) this.values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the value of a key, replacing any previous value.
+     *
+     * @param key Key
+     * @param value Value. Must not be null.
+     */
+    public void put(
+            long key,
+            V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not supported");
+        }
+
+        int mask = this.keys.length - 1;
+        int i = slot(key);
+        while (this.values[i] != null) {
+            if (this.keys[i] == key) {
+                this.values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        this.keys[i] = key;
+        this.values[i] = value;
+        this.size++;
+
+        // Keep the map at most half full, so that probes stay short
+        if (this.size * 2 > this.keys.length) {
+            grow();
+        }
+    }
+
+    /**
+     * Returns the number of keys in the map.
+     *
+     * @return An int with the number of keys
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns the slot where the probe for a key starts.
+     *
+     * @param key Key
+     * @return An int with the index of the slot
+     */
+    private int slot(long key) {
+        return (int) ((key * HASH_MULTIPLIER) >>> this.shift);
+    }
+
+    /**
+     * Allocates empty slots.
+     *
+     * @param capacity Number of slots. Must be a power of 2.
+     */
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    /**
+     * Doubles the number of slots and puts the entries back.
+     */
+    @SuppressWarnings("unchecked")
+    private void grow() {
+        long[] oldKeys = this.keys;
+        Object[] oldValues = this.values;
+        allocate(oldKeys.length * 2);
+        this.size = 0;
+        for (int i=0; i<oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                put(oldKeys[i], (V) oldValues[i]);
+            }
+        }
+    }
+
+}
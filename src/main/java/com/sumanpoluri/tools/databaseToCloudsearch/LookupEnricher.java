@@ -0,0 +1,278 @@
+package com.sumanpoluri.tools.databaseToCloudsearch;
+
+import org.json.JSONObject;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Adds denormalized fields to the documents (For e.g., the name of the department of an employee) from lookup tables
+ * held in memory, instead of joining them into the main SQL. Each lookup table is read once into a map keyed by a
+ * primitive long, and every row of the main SQL is enriched with a probe of that map. In Tail Mode, the lookup tables
+ * are read again every LOOKUP_TTL milliseconds.
+ */
+public class LookupEnricher {
+    //==================================================================================================================
+    // Class fields
+    //==================================================================================================================
+    /**
+     * The lookup tables. Change these to your desired lookups. Each lookup is a pair of:
+     * <ul>
+     * <li>the column of the main SQL that holds the key (For e.g., 'department_id'). It must be selected by the main
+     * SQLs in ExtractAndUpload, PageFetcher and ChangeTailer,</li>
+     * <li>the SQL of the lookup table. It must select the key as 'lookup_key', plus one column per field to add to the
+     * document, and return at most one row per key.</li>
+     * </ul>
+     * For e.g.,
+     * <pre>
+     * {"department_id", "SELECT " +
+     *         "id AS lookup_key, " +
+     *         "name AS department_name, " +
+     *         "location AS department_location " +
+     * "FROM " +
+     *         "department "}
+     * </pre>
+     * The lookup tables are held in memory in full, so they should be the small side of the join.
+     */
+    private static final String[][] LOOKUPS = {
+    };
+    private static final String LOOKUP_KEY_COLUMN = "lookup_key";
+    private static final long LOOKUP_TTL = Utils.getLongProperty("LOOKUP_TTL", 3600000L); // in milliseconds
+    private static final DateFormat DF_FULL = DateFormat.getDateTimeInstance(
+            DateFormat.FULL,
+            DateFormat.FULL,
+            Locale.US);
+
+    //==================================================================================================================
+    // Instance fields
+    //==================================================================================================================
+    private List<LookupTable> tables = new ArrayList<>();
+    // One per lookup, kept across the reads of the lookup tables, since the rows of each table have their own width.
+    private List<FetchSizer> fetchSizers = new ArrayList<>();
+    private long loadedTime = -1L;
+    private long lookupMisses = 0L;
+    private long fieldsOmitted = 0L;
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    /**
+     * Returns whether any lookups are configured.
+     *
+     * @return true if there are lookups
+     */
+    public boolean hasLookups() {
+        return LOOKUPS.length > 0;
+    }
+
+    /**
+     * Returns the number of rows whose key was not found in a lookup table so far.
+     *
+     * @return A long with the number of misses
+     */
+    public long getLookupMisses() {
+        return this.lookupMisses;
+    }
+
+    /**
+     * Returns the number of lookup rows left out of documents so far because they did not fit.
+     *
+     * @return A long with the number of lookup rows
+     */
+    public long getFieldsOmitted() {
+        return this.fieldsOmitted;
+    }
+
+    /**
+     * Reads the lookup tables unless they were already read.
+     *
+     * @param conn Database connection
+     * @throws SQLException
+     */
+    public void loadIfNeeded(Connection conn) throws SQLException {
+        if (this.loadedTime < 0) {
+            load(conn);
+        }
+    }
+
+    /**
+     * Reads the lookup tables again if they were read more than LOOKUP_TTL milliseconds ago. A LOOKUP_TTL of 0 never
+     * reads them again.
+     *
+     * @param conn Database connection
+     * @throws SQLException
+     */
+    public void refreshIfDue(Connection conn) throws SQLException {
+        if (this.loadedTime < 0 || (LOOKUP_TTL > 0 && System.currentTimeMillis() - this.loadedTime >= LOOKUP_TTL)) {
+            load(conn);
+        }
+    }
+
+    /**
+     * Adds the fields of the lookup rows matching the current row to its document. Lookup rows that do not fit in the
+     * room left in the document are left out.
+     *
+     * @param rs Result set positioned on the row
+     * @param fields Fields of the document
+     * @param rowConverter Converter used for the document, which keeps track of the room left in it
+     * @throws SQLException
+     */
+    public void enrich(
+            ResultSet rs,
+            JSONObject fields,
+            RowConverter rowConverter) throws SQLException {
+        if (this.tables.isEmpty()) {
+            return;
+        }
+
+        StageEvents.LookupEnrich event = new StageEvents.LookupEnrich();
+        event.begin();
+        for (LookupTable table : this.tables) {
+            long key = rs.getLong(table.keyColumn);
+            if (rs.wasNull()) {
+                continue;
+            }
+            LookupRow row = table.rows.get(key);
+            if (row == null) {
+                this.lookupMisses++;
+                continue;
+            }
+            if (rowConverter.getRemainingBytes() < row.bytes) {
+                this.fieldsOmitted++;
+                continue;
+            }
+            for (int i=0; i<row.values.length; i++) {
+                if (row.values[i] != null) {
+                    fields.put(
+                            table.names.get(i),
+                            row.values[i]);
+                }
+            }
+            rowConverter.consume(row.bytes);
+        }
+        event.commit();
+    }
+
+    /**
+     * Reads all the lookup tables. The tables in use are only replaced once all of them are read.
+     *
+     * @param conn Database connection
+     * @throws SQLException
+     */
+    private void load(Connection conn) throws SQLException {
+        List<LookupTable> newTables = new ArrayList<>();
+        for (int i=0; i<LOOKUPS.length; i++) {
+            if (this.fetchSizers.size() <= i) {
+                this.fetchSizers.add(new FetchSizer());
+            }
+            long startTime = System.currentTimeMillis();
+            LookupTable table = loadTable(conn, LOOKUPS[i][0], LOOKUPS[i][1], this.fetchSizers.get(i));
+            newTables.add(table);
+            System.out.println(
+                    DF_FULL.format(new Date()) +
+                            ": Loaded " + table.rows.size() + " lookup rows for " + table.keyColumn +
+                            " in " + (System.currentTimeMillis() - startTime) + "ms");
+        }
+        this.tables = newTables;
+        this.loadedTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Reads a lookup table. The values are converted the same way as the columns of the main SQL, so they are ready to
+     * be added to the documents.
+     *
+     * @param conn Database connection
+     * @param keyColumn Column of the main SQL that holds the key
+     * @param sql SQL of the lookup table
+     * @param fetchSizer Sizes the fetches of the lookup table from the width of its rows
+     * @return The lookup table
+     * @throws SQLException
+     */
+    private static LookupTable loadTable(
+            Connection conn,
+            String keyColumn,
+            String sql,
+            FetchSizer fetchSizer) throws SQLException {
+        LookupTable table = new LookupTable(keyColumn);
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        try {
+            stmt.setFetchSize(fetchSizer.getFetchSize());
+            ResultSet rs = stmt.executeQuery();
+            RowConverter rowConverter = new RowConverter(rs.getMetaData(), LOOKUP_KEY_COLUMN);
+            while (rs.next()) {
+                long key = rs.getLong(LOOKUP_KEY_COLUMN);
+                JSONObject fields = rowConverter.toFields(rs);
+                fetchSizer.rowFetched(rs, rowConverter.getRowBytes());
+                Object[] values = new Object[table.names.size()];
+                for (String name : fields.keySet()) {
+                    int index = table.names.indexOf(name);
+                    if (index < 0) {
+                        // A field seen for the first time, after a row where it was null
+                        index = table.names.size();
+                        table.names.add(name);
+                    }
+                    if (index >= values.length) {
+                        Object[] grownValues = new Object[table.names.size()];
+                        System.arraycopy(values, 0, grownValues, 0, values.length);
+                        values = grownValues;
+                    }
+                    values[index] = fields.get(name);
+                }
+                table.rows.put(key, new LookupRow(values, rowConverter.getRowBytes()));
+            }
+            rs.close();
+        } finally {
+            stmt.close();
+        }
+        return table;
+    }
+
+    /**
+     * A lookup table read into memory.
+     */
+    private static class LookupTable {
+        //==============================================================================================================
+        // Instance fields
+        //==============================================================================================================
+        private String keyColumn;
+        // Names of the fields, in the order of the values of the rows
+        private List<String> names = new ArrayList<>();
+        private LongObjectMap<LookupRow> rows = new LongObjectMap<>(1024);
+
+        //==============================================================================================================
+        // Constructors
+        //==============================================================================================================
+        LookupTable(String keyColumn) {
+            this.keyColumn = keyColumn;
+        }
+    }
+
+    /**
+     * The values of a row of a lookup table and the room they take in a document.
+     */
+    private static class LookupRow {
+        //==============================================================================================================
+        // Instance fields
+        //==============================================================================================================
+        private Object[] values;
+        private long bytes;
+
+        //==============================================================================================================
+        // Constructors
+        //==============================================================================================================
+        LookupRow(
+                Object[] values,
+                long bytes) {
+            this.values = values;
+            this.bytes = bytes;
+        }
+    }
+
+}
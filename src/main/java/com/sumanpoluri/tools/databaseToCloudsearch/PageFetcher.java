@@ -0,0 +1,367 @@
+package com.sumanpoluri.tools.databaseToCloudsearch;
+
+import org.json.JSONObject;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.SynchronousQueue;
+
+/**
+ * Extracts the data in pages with keyset pagination (WHERE id &gt; last id ORDER BY id LIMIT page size), instead of
+ * holding a single cursor open for the whole run. Each page is a short query that starts from the last id seen, so a
+ * lost connection only costs the page in progress.
+ * <p>
+ * Pages are fetched on a separate thread, one page ahead of the page being uploaded. The page size adapts to the time
+ * the pages take: it is doubled while pages come back in under half of the target time and halved when a page takes
+ * longer than the target time. It is also capped to the number of rows that fit in the memory budget of the
+ * FetchSizer, and a page is cut short if its rows reach the budget before the LIMIT, so that wide rows never pile up in
+ * memory.
+ * </p>
+ */
+public class PageFetcher implements Runnable {
+    //==================================================================================================================
+    // Class fields
+    //==================================================================================================================
+    /**
+     * The SQL to extract a page of data. Change this to your desired SQL. It must select the same fields as
+     * SQL_SELECT_DATA in ExtractAndUpload and take the following parameters, in order: id to start after, page size.
+     * The 'id' column must be indexed.
+     */
+    private static final String SQL_SELECT_DATA_PAGE =
+            "SELECT " +
+                    "id, " +
+                    "first_name, " +
+                    "last_name, " +
+                    "date_of_birth, " +
+                    "join_date " +
+            "FROM " +
+                    "employee " +
+            "WHERE " +
+                    "id > ? " +
+            "ORDER BY id " +
+            "LIMIT ? ";
+    private static final long PAGE_SIZE = Utils.getLongProperty("PAGE_SIZE", 10000L); // in rows
+    private static final long PAGE_SIZE_MIN = Utils.getLongProperty("PAGE_SIZE_MIN", 1000L); // in rows
+    private static final long PAGE_SIZE_MAX = Utils.getLongProperty("PAGE_SIZE_MAX", 100000L); // in rows
+    private static final long PAGE_TARGET_TIME = Utils.getLongProperty("PAGE_TARGET_TIME", 2000L); // in milliseconds
+    private static final int MAX_PAGE_ATTEMPTS = 3;
+    private static final DateFormat DF_FULL = DateFormat.getDateTimeInstance(
+            DateFormat.FULL,
+            DateFormat.FULL,
+            Locale.US);
+
+    //==================================================================================================================
+    // Instance fields
+    //==================================================================================================================
+    private String user;
+    private String password;
+    private String host;
+    private String port;
+    private String database;
+    private Connection conn;
+    private PreparedStatement stmt;
+    private RowConverter rowConverter;
+    private ChildJoiner childJoiner = new ChildJoiner();
+    private FetchSizer fetchSizer = new FetchSizer();
+    private LookupEnricher lookupEnricher = new LookupEnricher();
+    private SynchronousQueue<Page> pages = new SynchronousQueue<>();
+    private long lastId = Long.MIN_VALUE;
+    private long pageSize = Math.max(PAGE_SIZE_MIN, Math.min(PAGE_SIZE_MAX, PAGE_SIZE));
+    private long pagesFetched = 0L;
+    private boolean pageCutShort = false;
+
+    //==================================================================================================================
+    // Constructors
+    //==================================================================================================================
+    /**
+     * Main constructor
+     *
+     * @param user Username for the database
+     * @param password Password for the database
+     * @param host Hostname for the database
+     * @param port Port for the database
+     * @param database Name of the database
+     */
+    public PageFetcher(
+            String user,
+            String password,
+            String host,
+            String port,
+            String database) {
+        this.user = user;
+        this.password = password;
+        this.host = host;
+        this.port = port;
+        this.database = database;
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    /**
+     * Fetches the pages until the last one, handing each one over to take(). Any failure is handed over as a last page
+     * with the error, so that take() never waits for a page that will not come.
+     */
+    @Override
+    public void run() {
+        Exception error = null;
+        try {
+            boolean lastPage = false;
+            while (!lastPage) {
+                long requestedPageSize = this.pageSize;
+                List<ExtractedRow> rows = fetchPageWithRetries();
+                lastPage = !this.pageCutShort && rows.size() < requestedPageSize;
+                if (!rows.isEmpty()) {
+                    this.lastId = rows.get(rows.size() - 1).getRowId();
+                }
+                this.pages.put(new Page(rows, lastPage, null));
+            }
+        } catch (InterruptedException e) {
+            // The uploader stopped taking pages
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // For e.g., a SQLException, or a RuntimeException from the conversion of a row
+            error = e;
+        } catch (Error e) {
+            // For e.g., an OutOfMemoryError
+            error = new RuntimeException("Page fetcher failed", e);
+            throw e;
+        } finally {
+            disconnect();
+            if (error != null) {
+                try {
+                    this.pages.put(new Page(new ArrayList<ExtractedRow>(), true, error));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the next page.
+     *
+     * @return The next page
+     * @throws InterruptedException
+     */
+    public Page take() throws InterruptedException {
+        return this.pages.take();
+    }
+
+    /**
+     * Returns the number of pages fetched so far.
+     *
+     * @return A long with the number of pages
+     */
+    public long getPagesFetched() {
+        return this.pagesFetched;
+    }
+
+    /**
+     * Returns the current page size.
+     *
+     * @return A long with the number of rows per page
+     */
+    public long getPageSize() {
+        return this.pageSize;
+    }
+
+    /**
+     * Returns the FetchSizer of the page queries.
+     *
+     * @return The FetchSizer
+     */
+    public FetchSizer getFetchSizer() {
+        return this.fetchSizer;
+    }
+
+    /**
+     * Returns the number of child rows added to documents so far.
+     *
+     * @return A long with the number of child rows
+     */
+    public long getChildRowsJoined() {
+        return this.childJoiner.getChildRowsJoined();
+    }
+
+    /**
+     * Returns the number of rows whose key was not found in a lookup table so far.
+     *
+     * @return A long with the number of misses
+     */
+    public long getLookupMisses() {
+        return this.lookupEnricher.getLookupMisses();
+    }
+
+    /**
+     * Returns the number of text fields truncated or omitted so far because they did not fit.
+     *
+     * @return A long with the number of fields
+     */
+    public long getFieldsTruncated() {
+        return this.rowConverter == null ? 0L : this.rowConverter.getFieldsTruncated();
+    }
+
+    /**
+     * Fetches the next page, reconnecting and starting the page over if the connection is lost.
+     *
+     * @return The rows of the page
+     * @throws SQLException if the page still fails after MAX_PAGE_ATTEMPTS attempts
+     */
+    private List<ExtractedRow> fetchPageWithRetries() throws SQLException {
+        for (int attempt=1; ; attempt++) {
+            try {
+                if (this.conn == null) {
+                    connect();
+                }
+                return fetchPage();
+            } catch (SQLException e) {
+                disconnect();
+                if (attempt >= MAX_PAGE_ATTEMPTS) {
+                    throw e;
+                }
+                System.err.println(
+                        DF_FULL.format(new Date()) +
+                                ": Page after id " + this.lastId + " failed, retrying. Message = " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Fetches the page after the last id seen and adapts the page size to the time it took and to the memory budget.
+     * The page is cut short once its rows reach the memory budget.
+     *
+     * @return The rows of the page
+     * @throws SQLException
+     */
+    private List<ExtractedRow> fetchPage() throws SQLException {
+        long startTime = System.currentTimeMillis();
+        this.stmt.setLong(1, this.lastId);
+        this.stmt.setLong(2, this.pageSize);
+        this.stmt.setFetchSize(this.fetchSizer.getFetchSize());
+        ResultSet rs = this.stmt.executeQuery();
+        if (this.rowConverter == null) {
+            this.rowConverter = new RowConverter(rs.getMetaData());
+        }
+
+        List<ExtractedRow> rows = new ArrayList<>();
+        long pageBytes = 0L;
+        this.pageCutShort = false;
+        while (StageEvents.fetchRow(rs)) {
+            JSONObject fields = this.rowConverter.toFields(rs);
+            this.fetchSizer.rowFetched(rs, this.rowConverter.getRowBytes());
+            this.lookupEnricher.enrich(rs, fields, this.rowConverter);
+            rows.add(new ExtractedRow(
+                    rs.getLong("id"),
+                    fields,
+                    this.rowConverter.getRemainingBytes()));
+            pageBytes += this.rowConverter.getRowBytes();
+            if (pageBytes >= this.fetchSizer.getMemoryBudget()) {
+                // The next page starts after the last row read
+                this.pageCutShort = true;
+                break;
+            }
+        }
+        rs.close();
+
+        // Multi-valued fields for the ids of this page only
+        if (this.childJoiner.hasChildren() && !rows.isEmpty()) {
+            this.childJoiner.open(
+                    this.conn,
+                    this.lastId,
+                    rows.get(rows.size() - 1).getRowId());
+            for (ExtractedRow row : rows) {
+                this.rowConverter.setRemainingBytes(row.getRemainingBytes());
+                this.childJoiner.join(
+                        row.getRowId(),
+                        row.getFields(),
+                        this.rowConverter);
+            }
+            this.childJoiner.close();
+        }
+        this.pagesFetched++;
+
+        long pageTime = System.currentTimeMillis() - startTime;
+        if (pageTime > PAGE_TARGET_TIME) {
+            this.pageSize = Math.max(PAGE_SIZE_MIN, this.pageSize / 2);
+        } else if (pageTime < PAGE_TARGET_TIME / 2 && rows.size() == this.pageSize) {
+            this.pageSize = Math.min(PAGE_SIZE_MAX, this.pageSize * 2);
+        }
+        this.pageSize = Math.min(this.pageSize, this.fetchSizer.getRowsWithinBudget());
+        return rows;
+    }
+
+    /**
+     * Opens the database connection and prepares the page statement.
+     *
+     * @throws SQLException
+     */
+    private void connect() throws SQLException {
+        this.conn = Utils.getDBConnection(
+                this.user,
+                this.password,
+                this.host,
+                this.port,
+                this.database);
+        this.conn.setReadOnly(true);
+        this.stmt = this.conn.prepareStatement(SQL_SELECT_DATA_PAGE);
+        this.lookupEnricher.loadIfNeeded(this.conn);
+    }
+
+    /**
+     * Closes the database connection.
+     */
+    private void disconnect() {
+        this.childJoiner.close();
+        Utils.closeDBConnection(this.conn);
+        this.conn = null;
+        this.stmt = null;
+    }
+
+    /**
+     * A page of rows handed over to the uploader.
+     */
+    public static class Page {
+        //==============================================================================================================
+        // Instance fields
+        //==============================================================================================================
+        private List<ExtractedRow> rows;
+        private boolean last;
+        private Exception error;
+
+        //==============================================================================================================
+        // Constructors
+        //==============================================================================================================
+        Page(
+                List<ExtractedRow> rows,
+                boolean last,
+                Exception error) {
+            this.rows = rows;
+            this.last = last;
+            this.error = error;
+        }
+
+        //==============================================================================================================
+        // Methods
+        //==============================================================================================================
+        public List<ExtractedRow> getRows() {
+            return rows;
+        }
+
+        public boolean isLast() {
+            return last;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+    }
+
+}
@@ -0,0 +1,490 @@
+package com.sumanpoluri.tools.databaseToCloudsearch;
+
+import com.amazonaws.services.cloudsearchdomain.model.Hit;
+import com.amazonaws.services.cloudsearchdomain.model.QueryParser;
+import com.amazonaws.services.cloudsearchdomain.model.SearchRequest;
+import com.amazonaws.services.cloudsearchdomain.model.SearchResult;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Checks a sample of the data in the Cloudsearch domain against the database, after a load.
+ * <p>
+ * The ids are split into ranges of VERIFY_RANGE_SIZE and a random VERIFY_SAMPLE_RATE of the ranges are checked. For
+ * each range, the documents are built from the database the same way as for the upload, and the documents of the same
+ * range are fetched from the search endpoint, several ranges at a time. The ranges are compared by the number of
+ * documents and a hash of their contents. Only the ranges that do not match are compared document by document, and the
+ * documents that are missing from the domain or differ are uploaded again.
+ * </p>
+ * The search needs the 'id' column to be an int field of the domain that is searchable. Only the fields in
+ * VERIFY_FIELDS, or all the fields if it is omitted, are compared, so they must be return enabled.
+ */
+public class Reconciler {
+    //==================================================================================================================
+    // Class fields
+    //==================================================================================================================
+    /**
+     * The SQL to find the range of ids to verify. Change this to match SQL_SELECT_DATA in ExtractAndUpload.
+     */
+    private static final String SQL_SELECT_ID_BOUNDS =
+            "SELECT " +
+                    "MIN(id), " +
+                    "MAX(id) " +
+            "FROM " +
+                    "employee ";
+    /**
+     * The SQL to extract a range of data. Change this to your desired SQL. It must select the same fields as
+     * SQL_SELECT_DATA in ExtractAndUpload and take the following parameters, in order: first id, id to end before.
+     */
+    private static final String SQL_SELECT_DATA_RANGE =
+            "SELECT " +
+                    "id, " +
+                    "first_name, " +
+                    "last_name, " +
+                    "date_of_birth, " +
+                    "join_date " +
+            "FROM " +
+                    "employee " +
+            "WHERE " +
+                    "id >= ? AND id < ? " +
+            "ORDER BY id ";
+    /**
+     * Per AWS CloudSearch developer docs, a search returns at most 10000 hits.
+     */
+    private static final long MAX_SEARCH_SIZE = 10000L;
+    private static final long RANGE_SIZE = Math.max(1L, Math.min(
+            MAX_SEARCH_SIZE,
+            Utils.getLongProperty("VERIFY_RANGE_SIZE", 1000L))); // in ids
+    private static final double SAMPLE_RATE = Utils.getDoubleProperty("VERIFY_SAMPLE_RATE", 0.01);
+    private static final int SEARCH_THREADS = (int) Math.max(1L, Utils.getLongProperty("VERIFY_THREADS", 4L));
+    private static final String VERIFY_FIELDS = System.getProperty("VERIFY_FIELDS");
+    private static final String VERIFY_REPAIR_PARAM = System.getProperty("VERIFY_REPAIR");
+    private static final Boolean VERIFY_REPAIR = VERIFY_REPAIR_PARAM == null ||
+            !VERIFY_REPAIR_PARAM.trim().equalsIgnoreCase("N");
+    private static final int MAX_IDS_PRINTED = 20;
+    // Dates with and without zero milliseconds are the same date
+    private static final Pattern ZERO_MILLIS = Pattern.compile("(T\\d{2}:\\d{2}:\\d{2})\\.0+Z$");
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final DateFormat DF_FULL = DateFormat.getDateTimeInstance(
+            DateFormat.FULL,
+            DateFormat.FULL,
+            Locale.US);
+
+    //==================================================================================================================
+    // Instance fields
+    //==================================================================================================================
+    private String user;
+    private String password;
+    private String host;
+    private String port;
+    private String database;
+    private Batcher batcher;
+    private List<String> compareFields;
+    private RowConverter rowConverter;
+    private ChildJoiner childJoiner = new ChildJoiner();
+    private LookupEnricher lookupEnricher = new LookupEnricher();
+    private long rangesChecked = 0L;
+    private long rangesDiverged = 0L;
+    private long rangesFailed = 0L;
+    private long documentsChecked = 0L;
+    private long documentsMissing = 0L;
+    private long documentsDiffering = 0L;
+    private long documentsExtra = 0L;
+
+    //==================================================================================================================
+    // Constructors
+    //==================================================================================================================
+    /**
+     * Main constructor
+     *
+     * @param user Username for the database
+     * @param password Password for the database
+     * @param host Hostname for the database
+     * @param port Port for the database
+     * @param database Name of the database
+     */
+    public Reconciler(
+            String user,
+            String password,
+            String host,
+            String port,
+            String database) {
+        this.user = user;
+        this.password = password;
+        this.host = host;
+        this.port = port;
+        this.database = database;
+        this.batcher = new Batcher();
+        if (VERIFY_FIELDS != null && !VERIFY_FIELDS.trim().isEmpty()) {
+            this.compareFields = new ArrayList<>();
+            for (String field : VERIFY_FIELDS.split(",")) {
+                if (!field.trim().isEmpty()) {
+                    this.compareFields.add(field.trim());
+                }
+            }
+        }
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    /**
+     * Performs the verification.
+     */
+    public void run() {
+        Connection conn = null;
+        ExecutorService searchExecutor = Executors.newFixedThreadPool(SEARCH_THREADS);
+        try {
+            conn = Utils.getDBConnection(
+                    this.user,
+                    this.password,
+                    this.host,
+                    this.port,
+                    this.database);
+            conn.setReadOnly(true);
+
+            List<Long> rangeStarts = sampleRanges(conn);
+            if (rangeStarts.isEmpty()) {
+                System.out.println("No data to verify");
+                return;
+            }
+            System.out.println(
+                    DF_FULL.format(new Date()) +
+                            ": Verifying " + rangeStarts.size() + " ranges of " + RANGE_SIZE + " ids...");
+
+            // The searches run ahead on their own threads while the ranges are read from the database in order.
+            List<Future<Map<String, Long>>> searches = new ArrayList<>();
+            for (final Long rangeStart : rangeStarts) {
+                searches.add(searchExecutor.submit(new Callable<Map<String, Long>>() {
+                    @Override
+                    public Map<String, Long> call() {
+                        return searchRange(rangeStart);
+                    }
+                }));
+            }
+
+            this.lookupEnricher.loadIfNeeded(conn);
+            PreparedStatement stmt = conn.prepareStatement(SQL_SELECT_DATA_RANGE);
+            for (int i=0; i<rangeStarts.size(); i++) {
+                long rangeStart = rangeStarts.get(i);
+                Map<String, JSONObject> sourceDocuments = readRange(conn, stmt, rangeStart);
+                Map<String, Long> domainHashes;
+                try {
+                    domainHashes = searches.get(i).get();
+                } catch (ExecutionException e) {
+                    this.rangesFailed++;
+                    System.err.println(
+                            DF_FULL.format(new Date()) +
+                                    ": Search failed for ids " + rangeStart + " to " + (rangeStart + RANGE_SIZE - 1) +
+                                    ". Message = " + e.getCause().getMessage());
+                    continue;
+                }
+                compareRange(rangeStart, sourceDocuments, domainHashes);
+            }
+            stmt.close();
+
+            // Final call. This is to ensure the last document is not missed.
+            this.batcher.addDocument(null, null);
+
+            // Summary
+            System.out.println("-----------------------------");
+            System.out.println("Ranges checked           = " + this.rangesChecked);
+            System.out.println("Ranges diverged          = " + this.rangesDiverged);
+            System.out.println("Ranges failed            = " + this.rangesFailed);
+            System.out.println("Documents checked        = " + this.documentsChecked);
+            System.out.println("Documents missing        = " + this.documentsMissing);
+            System.out.println("Documents differing      = " + this.documentsDiffering);
+            System.out.println("Documents not in source  = " + this.documentsExtra);
+            System.out.println("Documents uploaded again = " + this.batcher.getDocumentsUploaded());
+            System.out.println("-----------------------------");
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            searchExecutor.shutdownNow();
+            this.childJoiner.close();
+            Utils.closeDBConnection(conn);
+            UploadTransport.shutdownSearchDomain();
+        }
+    }
+
+    /**
+     * Splits the ids into ranges and picks a random sample of them. At least one range is picked.
+     *
+     * @param conn Database connection
+     * @return The first id of each range picked, in order
+     * @throws SQLException
+     */
+    private List<Long> sampleRanges(Connection conn) throws SQLException {
+        List<Long> rangeStarts = new ArrayList<>();
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery(SQL_SELECT_ID_BOUNDS);
+        if (!rs.next()) {
+            stmt.close();
+            return rangeStarts;
+        }
+        long minId = rs.getLong(1);
+        boolean empty = rs.wasNull();
+        long maxId = rs.getLong(2);
+        stmt.close();
+        if (empty) {
+            return rangeStarts;
+        }
+
+        Random random = new Random();
+        long ranges = (maxId - minId) / RANGE_SIZE + 1;
+        for (long i=0; i<ranges; i++) {
+            if (random.nextDouble() < SAMPLE_RATE) {
+                rangeStarts.add(minId + i * RANGE_SIZE);
+            }
+        }
+        if (rangeStarts.isEmpty()) {
+            rangeStarts.add(minId + (long) (random.nextDouble() * ranges) * RANGE_SIZE);
+        }
+        return rangeStarts;
+    }
+
+    /**
+     * Builds the documents of a range of ids from the database, the same way as for the upload.
+     *
+     * @param conn Database connection
+     * @param stmt Statement of SQL_SELECT_DATA_RANGE
+     * @param rangeStart First id of the range
+     * @return The fields of the documents, by document ID
+     * @throws SQLException
+     */
+    private Map<String, JSONObject> readRange(
+            Connection conn,
+            PreparedStatement stmt,
+            long rangeStart) throws SQLException {
+        stmt.setLong(1, rangeStart);
+        stmt.setLong(2, rangeStart + RANGE_SIZE);
+        ResultSet rs = stmt.executeQuery();
+        if (this.rowConverter == null) {
+            this.rowConverter = new RowConverter(rs.getMetaData());
+        }
+        this.childJoiner.open(conn, rangeStart - 1, rangeStart + RANGE_SIZE - 1);
+
+        Map<String, JSONObject> documents = new LinkedHashMap<>();
+        while (rs.next()) {
+            JSONObject fields = this.rowConverter.toFields(rs);
+            this.lookupEnricher.enrich(rs, fields, this.rowConverter);
+            this.childJoiner.join(rs.getLong("id"), fields, this.rowConverter);
+            documents.put(this.rowConverter.toId(rs), fields);
+        }
+        rs.close();
+        this.childJoiner.close();
+        return documents;
+    }
+
+    /**
+     * Fetches the documents of a range of ids from the search endpoint.
+     *
+     * @param rangeStart First id of the range
+     * @return The hashes of the documents, by document ID
+     */
+    private Map<String, Long> searchRange(long rangeStart) {
+        SearchRequest req = new SearchRequest()
+                .withQuery("(range field=id [" + rangeStart + "," + (rangeStart + RANGE_SIZE - 1) + "])")
+                .withQueryParser(QueryParser.Structured)
+                .withSize(RANGE_SIZE)
+                .withReturn(this.compareFields == null ? "_all_fields" : VERIFY_FIELDS.trim());
+        SearchResult result = UploadTransport.getSearchDomain().search(req);
+
+        Map<String, Long> hashes = new HashMap<>();
+        for (Hit hit : result.getHits().getHit()) {
+            Map<String, List<String>> fields = hit.getFields() == null ?
+                    new HashMap<String, List<String>>() :
+                    hit.getFields();
+            hashes.put(hit.getId(), hashDocument(hit.getId(), fields));
+        }
+        return hashes;
+    }
+
+    /**
+     * Compares a range by the number of documents and the sum of their hashes. If they do not match, the documents are
+     * compared one by one and the ones missing from the domain or different are uploaded again.
+     *
+     * @param rangeStart First id of the range
+     * @param sourceDocuments The documents built from the database, by document ID
+     * @param domainHashes The hashes of the documents in the domain, by document ID
+     */
+    private void compareRange(
+            long rangeStart,
+            Map<String, JSONObject> sourceDocuments,
+            Map<String, Long> domainHashes) {
+        this.rangesChecked++;
+        this.documentsChecked += sourceDocuments.size();
+        Map<String, Long> sourceHashes = new HashMap<>();
+        long sourceSum = 0L;
+        for (Map.Entry<String, JSONObject> entry : sourceDocuments.entrySet()) {
+            long hash = hashDocument(entry.getKey(), toFieldValues(entry.getValue()));
+            sourceHashes.put(entry.getKey(), hash);
+            sourceSum += hash;
+        }
+        long domainSum = 0L;
+        for (Long hash : domainHashes.values()) {
+            domainSum += hash;
+        }
+        if (sourceHashes.size() == domainHashes.size() && sourceSum == domainSum) {
+            return;
+        }
+
+        // Drill into the range
+        this.rangesDiverged++;
+        List<String> missing = new ArrayList<>();
+        List<String> differing = new ArrayList<>();
+        List<String> extra = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : sourceHashes.entrySet()) {
+            Long domainHash = domainHashes.get(entry.getKey());
+            if (domainHash == null) {
+                missing.add(entry.getKey());
+            } else if (!domainHash.equals(entry.getValue())) {
+                differing.add(entry.getKey());
+            }
+        }
+        for (String id : domainHashes.keySet()) {
+            if (!sourceHashes.containsKey(id)) {
+                extra.add(id);
+            }
+        }
+        this.documentsMissing += missing.size();
+        this.documentsDiffering += differing.size();
+        this.documentsExtra += extra.size();
+        System.out.println(
+                DF_FULL.format(new Date()) +
+                        ": Ids " + rangeStart + " to " + (rangeStart + RANGE_SIZE - 1) + " diverged - " +
+                        missing.size() + " missing " + idsToString(missing) + ", " +
+                        differing.size() + " differing " + idsToString(differing) + ", " +
+                        extra.size() + " not in source " + idsToString(extra));
+
+        if (VERIFY_REPAIR) {
+            // The documents are uploaded again in the order of the range
+            Set<String> repaired = new HashSet<>(missing);
+            repaired.addAll(differing);
+            for (Map.Entry<String, JSONObject> entry : sourceDocuments.entrySet()) {
+                if (repaired.contains(entry.getKey())) {
+                    this.batcher.addDocument(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the fields of a document built from the database in the form returned by a search: every value as a
+     * list of strings.
+     *
+     * @param fields Fields of the document
+     * @return The values of the fields, by field name
+     */
+    private static Map<String, List<String>> toFieldValues(JSONObject fields) {
+        Map<String, List<String>> values = new HashMap<>();
+        for (String name : fields.keySet()) {
+            Object value = fields.get(name);
+            List<String> strings = new ArrayList<>();
+            if (value instanceof JSONArray) {
+                JSONArray array = (JSONArray) value;
+                for (int i=0; i<array.length(); i++) {
+                    strings.add(String.valueOf(array.get(i)));
+                }
+            } else {
+                strings.add(String.valueOf(value));
+            }
+            values.put(name, strings);
+        }
+        return values;
+    }
+
+    /**
+     * Returns a 64 bit FNV-1a hash of a document, over its ID and the compared fields, sorted by name, with their
+     * values sorted.
+     *
+     * @param id Document ID
+     * @param fields Values of the fields, by field name
+     * @return A long with the hash
+     */
+    private long hashDocument(
+            String id,
+            Map<String, List<String>> fields) {
+        Map<String, List<String>> sortedFields = new TreeMap<>();
+        for (Map.Entry<String, List<String>> entry : fields.entrySet()) {
+            if (this.compareFields == null || this.compareFields.contains(entry.getKey())) {
+                sortedFields.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        long hash = hash(FNV_OFFSET, id);
+        for (Map.Entry<String, List<String>> entry : sortedFields.entrySet()) {
+            hash = hash(hash, "\u0001" + entry.getKey());
+            List<String> values = new ArrayList<>();
+            for (String value : entry.getValue()) {
+                values.add(ZERO_MILLIS.matcher(value).replaceFirst("$1Z"));
+            }
+            Collections.sort(values);
+            for (String value : values) {
+                hash = hash(hash, "\u0002" + value);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Adds a string to a FNV-1a hash.
+     *
+     * @param hash Hash so far
+     * @param value String to add
+     * @return A long with the new hash
+     */
+    private static long hash(
+            long hash,
+            String value) {
+        for (int i=0; i<value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the first few of the given ids, for the log.
+     *
+     * @param ids Document IDs
+     * @return A String with the ids
+     */
+    private static String idsToString(List<String> ids) {
+        if (ids.size() <= MAX_IDS_PRINTED) {
+            return ids.toString();
+        }
+        return Arrays.toString(ids.subList(0, MAX_IDS_PRINTED).toArray()).replace("]", ", ...]");
+    }
+
+}
@@ -0,0 +1,380 @@
+package com.sumanpoluri.tools.databaseToCloudsearch;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts the current row of a result set into the fields of a document.
+ */
+public class RowConverter {
+    //==================================================================================================================
+    // Class fields
+    //==================================================================================================================
+    /**
+     * Per AWS CloudSearch developer docs:
+     * Dates and times are specified in UTC (Coordinated Universal Time) according to IETF RFC3339:
+     * yyyy-mm-ddTHH:mm:ss.SSSZ. In UTC, for example, 5:00 PM August 23, 1970 is: 1970-08-23T17:00:00Z. Note that you
+     * can also specify fractional seconds when specifying times in UTC. For example, 1967-01-31T23:20:50.650Z.
+     * <p>
+     * See https://docs.aws.amazon.com/cloudsearch/latest/developerguide/configuring-index-fields.html for more details.
+     * </p>
+     */
+    private static final String FORMAT_TIMESTAMP = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+    // A prefix to the document ID. This is optional. Change to blank if not needed.
+    private static final String DOCUMENT_ID_PREFIX = "di_";
+    /**
+     * Per AWS CloudSearch developer docs, the maximum size of a document is 1 MB. Text that does not fit in the
+     * document, or in the max field size, is truncated.
+     */
+    private static final long MAX_DOCUMENT_SIZE = Utils.getLongProperty("MAX_DOCUMENT_SIZE", 1048576L); // in bytes
+    private static final long MAX_FIELD_SIZE = Utils.getLongProperty("MAX_FIELD_SIZE", MAX_DOCUMENT_SIZE); // in bytes
+    /**
+     * Room for the type, the id (up to 128 bytes) and the JSON punctuation around the fields of a document.
+     */
+    private static final int DOCUMENT_OVERHEAD = 192; // in bytes
+    private static final int READ_BUFFER_SIZE = 8192; // in chars
+
+    //==================================================================================================================
+    // Instance fields
+    //==================================================================================================================
+    private Map<String, String> colNamesMap;
+    private List<String> textColNames;
+    // Not thread safe. Each converter gets its own formatter.
+    private DateFormat timestampFormatter;
+    private char[] readBuffer = new char[READ_BUFFER_SIZE];
+    private long remainingBytes;
+    private long fieldsTruncated = 0L;
+
+    //==================================================================================================================
+    // Constructors
+    //==================================================================================================================
+    /**
+     * Main constructor. The fields are named after the column labels, i.e. the aliases given with AS in the SQL, or the
+     * column names.
+     *
+     * @param meta Metadata of the result set whose rows are to be converted
+     * @param excludedColumns Columns of the result set that must not be added to the document (For e.g., the columns
+     *                        used only to track changes)
+     * @throws SQLException
+     */
+    public RowConverter(
+            ResultSetMetaData meta,
+            String... excludedColumns) throws SQLException {
+        List<String> excluded = Arrays.asList(excludedColumns);
+        this.colNamesMap = new LinkedHashMap<>();
+        this.textColNames = new ArrayList<>();
+        for (int i=1; i<=meta.getColumnCount(); i++) {
+            if (excluded.contains(meta.getColumnLabel(i))) {
+                continue;
+            }
+            switch (meta.getColumnClassName(i)) {
+                case "java.lang.String":
+                case "java.sql.Clob":
+                    // Text columns are streamed after the other columns, with whatever room is left in the document.
+                    this.textColNames.add(meta.getColumnLabel(i));
+                    break;
+                default:
+                    this.colNamesMap.put(meta.getColumnLabel(i), meta.getColumnClassName(i));
+                    break;
+            }
+        }
+        this.timestampFormatter = new SimpleDateFormat(FORMAT_TIMESTAMP);
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    /**
+     * Returns the unique ID of the document for the current row. This is required.
+     *
+     * @param rs Result set positioned on the row
+     * @return A String with the document ID
+     * @throws SQLException
+     */
+    public String toId(ResultSet rs) throws SQLException {
+        return toId(rs.getInt("id"));
+    }
+
+    /**
+     * Returns the unique ID of the document for the given row id.
+     *
+     * @param rowId Value of the 'id' column of the row
+     * @return A String with the document ID
+     */
+    public static String toId(long rowId) {
+        return DOCUMENT_ID_PREFIX + rowId;
+    }
+
+    /**
+     * Returns the fields of the document for the current row. Text columns are streamed from the database, scrubbed
+     * of invalid characters and truncated to fit in the max field size and the max document size.
+     *
+     * @param rs Result set positioned on the row
+     * @return A JSONObject containing the fields and data to build the document
+     * @throws SQLException
+     */
+    public JSONObject toFields(ResultSet rs) throws SQLException {
+        StageEvents.RowConvert event = new StageEvents.RowConvert();
+        event.begin();
+        JSONObject fields = new JSONObject();
+        this.remainingBytes = MAX_DOCUMENT_SIZE - DOCUMENT_OVERHEAD;
+        Iterator colIter = this.colNamesMap.entrySet().iterator();
+        while (colIter.hasNext()) {
+            Map.Entry colEntry = (Map.Entry)colIter.next();
+            String colName = (String)colEntry.getKey();
+            String colClassName = (String)colEntry.getValue();
+            Object value;
+            try {
+                value = toValue(rs, colName, colClassName);
+            } catch (SQLException e) {
+                System.err.println("Conversion error on field " + colName + " for id " + rs.getLong("id"));
+                throw e;
+            }
+            // The name 'score' is reserved and cannot be specified as a field name for AWS Cloudsearch indexes.
+            // Any integer field from the SQL that has the name 'score' is replaced with 'score_' here. Change this as
+            // needed.
+            fields.put(
+                    colClassName.equals("java.lang.Integer") && colName.equals("score") ? "score_" : colName,
+                    value);
+            consume(getFieldOverhead(colName) + Utils.getEncodedSize(value == null ? null : String.valueOf(value)));
+        }
+
+        // The text is only timed while a recording is running, so that the clock is not read twice per column otherwise
+        boolean timeText = event.isEnabled();
+        for (String colName : this.textColNames) {
+            // Removes invalid characters from the string value.
+            long maxBytes = Math.min(MAX_FIELD_SIZE, this.remainingBytes - getFieldOverhead(colName));
+            String value;
+            long textStartTime = timeText ? System.nanoTime() : 0L;
+            try {
+                value = readText(
+                        rs.getCharacterStream(colName),
+                        maxBytes);
+            } catch (IOException e) {
+                throw new SQLException("Failed to read field " + colName + " for id " + rs.getLong("id"), e);
+            }
+            if (timeText) {
+                event.textDuration += System.nanoTime() - textStartTime;
+            }
+            if (value == null && rs.wasNull()) {
+                continue;
+            }
+            if (value == null) {
+                System.err.println("Field " + colName + " for id " + rs.getLong("id") +
+                        " does not fit in the document. Field omitted.");
+                this.fieldsTruncated++;
+                continue;
+            }
+            fields.put(
+                    colName,
+                    value);
+            consume(getFieldOverhead(colName) + Utils.getEncodedSize(value));
+        }
+        event.commit();
+        return fields;
+    }
+
+    /**
+     * Returns the value of a non-text column of the current row, converted for the document. Also used for the values
+     * of the child queries (see ChildJoiner), so that array fields get the same formats as single-valued fields.
+     *
+     * @param rs Result set positioned on the row
+     * @param colName Label of the column
+     * @param colClassName Java class of the column, as given by the metadata of the result set
+     * @return The value (For e.g., a Long, or a String with a timestamp per AWS Cloudsearch guidelines), or null for a
+     * null text or timestamp. Numbers and booleans that are null come back as 0 and false; use rs.wasNull() to tell.
+     * @throws SQLException
+     */
+    public Object toValue(
+            ResultSet rs,
+            String colName,
+            String colClassName) throws SQLException {
+        switch (colClassName) {
+            case "java.lang.Long":
+                return rs.getLong(colName);
+            case "java.lang.Integer":
+                return rs.getInt(colName);
+            case "java.lang.Boolean":
+                return rs.getBoolean(colName);
+            case "java.lang.Double":
+                return rs.getDouble(colName);
+            case "java.sql.Timestamp":
+                // Timestamps must be formatted per AWS Cloudsearch guidelines.
+                Timestamp timestamp = rs.getTimestamp(colName);
+                return timestamp == null ? null : this.timestampFormatter.format(timestamp);
+            default:
+                return rs.getString(colName);
+        }
+    }
+
+    /**
+     * Returns the number of bytes still available in the document for the current row.
+     *
+     * @return A long with the number of bytes
+     */
+    public long getRemainingBytes() {
+        return this.remainingBytes;
+    }
+
+    /**
+     * Returns the number of bytes the fields of the current row take in the document.
+     *
+     * @return A long with the number of bytes
+     */
+    public long getRowBytes() {
+        return MAX_DOCUMENT_SIZE - DOCUMENT_OVERHEAD - this.remainingBytes;
+    }
+
+    /**
+     * Sets the number of bytes still available in the document being built. Used to add more fields to a document
+     * after other rows have been converted.
+     *
+     * @param remainingBytes Number of bytes
+     */
+    public void setRemainingBytes(long remainingBytes) {
+        this.remainingBytes = remainingBytes;
+    }
+
+    /**
+     * Returns the number of text fields truncated or omitted so far because they did not fit.
+     *
+     * @return A long with the number of fields
+     */
+    public long getFieldsTruncated() {
+        return this.fieldsTruncated;
+    }
+
+    /**
+     * Marks the given number of bytes as used in the document for the current row.
+     *
+     * @param bytes Number of bytes
+     */
+    public void consume(long bytes) {
+        this.remainingBytes -= bytes;
+    }
+
+    /**
+     * Returns the number of bytes the name of a field takes in the document, including the JSON punctuation.
+     *
+     * @param name Name of the field
+     * @return An int with the number of bytes
+     */
+    public static int getFieldOverhead(String name) {
+        // "name": followed by a comma
+        return name.length() + 4;
+    }
+
+    /**
+     * Reads text from the reader, replacing invalid characters with a space. Reading stops as soon as the text no
+     * longer fits in the given number of bytes, so the whole value is never held in memory.
+     * <p>
+     * A surrogate pair is a single character outside the valid ranges, so it is replaced with a single space, the same
+     * as with the regular expression in isValidChar. A surrogate without its pair is replaced on its own. Every
+     * character kept is a whole character, so the text is always truncated on a valid character boundary.
+     * </p>
+     *
+     * @param reader Reader for the value, or null if the value is null
+     * @param maxBytes Max size of the value in the document, in bytes, including the quotes
+     * @return A String with the value, or null if the value is null or no room is left for it
+     * @throws IOException
+     */
+    public String readText(
+            Reader reader,
+            long maxBytes) throws IOException {
+        if (reader == null) {
+            return null;
+        }
+
+        try {
+            if (maxBytes < 2) {
+                return null;
+            }
+
+            StringBuilder sb = new StringBuilder();
+            long bytes = 2; // quotes
+            int charsRead;
+            // A high surrogate is held until the next character, which can be in the next read, shows if it is a pair
+            boolean highSurrogate = false;
+            while ((charsRead = reader.read(this.readBuffer)) != -1) {
+                for (int i=0; i<charsRead; i++) {
+                    char c = this.readBuffer[i];
+                    if (highSurrogate) {
+                        highSurrogate = false;
+                        if (Character.isLowSurrogate(c)) {
+                            c = ' ';
+                        } else {
+                            // The high surrogate has no pair
+                            if (bytes + 1 > maxBytes) {
+                                this.fieldsTruncated++;
+                                return sb.toString();
+                            }
+                            bytes += 1;
+                            sb.append(' ');
+                        }
+                    }
+                    if (Character.isHighSurrogate(c)) {
+                        highSurrogate = true;
+                        continue;
+                    }
+                    c = isValidChar(c) ? c : ' ';
+                    int size = Utils.getEncodedSize(c);
+                    if (bytes + size > maxBytes) {
+                        this.fieldsTruncated++;
+                        return sb.toString();
+                    }
+                    bytes += size;
+                    sb.append(c);
+                }
+            }
+            if (highSurrogate) {
+                // The text ends with a high surrogate that has no pair
+                if (bytes + 1 > maxBytes) {
+                    this.fieldsTruncated++;
+                    return sb.toString();
+                }
+                sb.append(' ');
+            }
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Per AWS CloudSearch developer docs:
+     * Both JSON and XML batches can only contain UTF-8 characters that are valid in XML. Valid characters are the
+     * control characters tab (0009), carriage return (000D), and line feed (000A), and the legal characters of Unicode
+     * and ISO/IEC 10646. FFFE, FFFF, and the surrogate blocks D800–DBFF and DC00–DFFF are invalid and will cause
+     * errors. (For more information, see Extensible Markup Language (XML) 1.0 (Fifth Edition).) You can use the
+     * following regular expression to match invalid characters so you can remove them:
+     * /[^\u0009\u000a\u000d\u0020-\uD7FF\uE000-\uFFFD]/ .
+     * <p>
+     * See https://docs.aws.amazon.com/cloudsearch/latest/developerguide/preparing-data.html for more details.
+     * </p>
+     * The same ranges are checked here character by character, so that text can be scrubbed while it is streamed
+     * from the database.
+     *
+     * @param c Character to check
+     * @return true if the character is valid
+     */
+    private static boolean isValidChar(char c) {
+        return c == 0x9 || c == 0xA || c == 0xD ||
+                (c >= 0x20 && c <= 0xD7FF) ||
+                (c >= 0xE000 && c <= 0xFFFD);
+    }
+
+}
@@ -0,0 +1,166 @@
+package com.sumanpoluri.tools.databaseToCloudsearch;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Java Flight Recorder events for the stages of the extract and upload process. The events are only recorded while a
+ * flight recording is running (For e.g., with -XX:StartFlightRecording=filename=run.jfr), otherwise they cost next to
+ * nothing. Use RUN_MODE=STAGE_REPORT to break the time of a recording down by stage.
+ */
+public class StageEvents {
+    //==================================================================================================================
+    // Class fields
+    //==================================================================================================================
+    static final String NAME_PREFIX = "com.sumanpoluri.tools.databaseToCloudsearch.";
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    /**
+     * Moves the result set to the next row, recording the time taken by the JDBC driver.
+     *
+     * @param rs Result set
+     * @return true if the result set is on a row
+     * @throws SQLException
+     */
+    public static boolean fetchRow(ResultSet rs) throws SQLException {
+        RowFetch event = new RowFetch();
+        event.begin();
+        boolean hasRow = rs.next();
+        event.commit();
+        return hasRow;
+    }
+
+    //==================================================================================================================
+    // Events
+    //==================================================================================================================
+    /**
+     * A row fetched from the database.
+     */
+    @Name(NAME_PREFIX + "RowFetch")
+    @Label("Row Fetch")
+    @Description("Time in ResultSet.next(), including the network round trips of the JDBC driver")
+    @Category({"DatabaseToCloudsearch", "Extract"})
+    @StackTrace(false)
+    public static class RowFetch extends Event {
+    }
+
+    /**
+     * A row converted into the fields of a document.
+     */
+    @Name(NAME_PREFIX + "RowConvert")
+    @Label("Row Convert")
+    @Description("Time converting the columns of a row into document fields")
+    @Category({"DatabaseToCloudsearch", "Extract"})
+    @StackTrace(false)
+    public static class RowConvert extends Event {
+        @Label("Text Duration")
+        @Description("Part of the time spent reading and scrubbing text columns")
+        @Timespan(Timespan.NANOSECONDS)
+        long textDuration;
+    }
+
+    /**
+     * The child rows of a document joined as multi-valued fields.
+     */
+    @Name(NAME_PREFIX + "ChildJoin")
+    @Label("Child Join")
+    @Description("Time reading the child rows of a document")
+    @Category({"DatabaseToCloudsearch", "Extract"})
+    @StackTrace(false)
+    public static class ChildJoin extends Event {
+    }
+
+    /**
+     * The fields of a document added from the lookup tables.
+     */
+    @Name(NAME_PREFIX + "LookupEnrich")
+    @Label("Lookup Enrich")
+    @Description("Time adding the fields of a document from the in-memory lookup tables")
+    @Category({"DatabaseToCloudsearch", "Extract"})
+    @StackTrace(false)
+    public static class LookupEnrich extends Event {
+    }
+
+    /**
+     * A document built and added to the batch.
+     */
+    @Name(NAME_PREFIX + "DocumentEncode")
+    @Label("Document Encode")
+    @Description("Time building the JSON of a document and measuring its size")
+    @Category({"DatabaseToCloudsearch", "Batch"})
+    @StackTrace(false)
+    public static class DocumentEncode extends Event {
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * A batch serialized for upload.
+     */
+    @Name(NAME_PREFIX + "BatchSeal")
+    @Label("Batch Seal")
+    @Description("Time serializing a full batch for upload")
+    @Category({"DatabaseToCloudsearch", "Batch"})
+    @StackTrace(false)
+    public static class BatchSeal extends Event {
+        @Label("Documents")
+        int documents;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Fill Ratio")
+        @Description("Size of the batch relative to the max allowed batch size")
+        @Percentage
+        double fillRatio;
+    }
+
+    /**
+     * A wait for the upload rate limit.
+     */
+    @Name(NAME_PREFIX + "ThrottleWait")
+    @Label("Throttle Wait")
+    @Description("Time waiting before an upload to keep to one batch every 10 seconds")
+    @Category({"DatabaseToCloudsearch", "Upload"})
+    @StackTrace(false)
+    public static class ThrottleWait extends Event {
+    }
+
+    /**
+     * An upload request and its response.
+     */
+    @Name(NAME_PREFIX + "Upload")
+    @Label("Upload")
+    @Description("Time from sending an upload request to receiving its response")
+    @Category({"DatabaseToCloudsearch", "Upload"})
+    @StackTrace(false)
+    public static class Upload extends Event {
+        @Label("Documents")
+        int documents;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Status")
+        String status;
+
+        @Label("Adds")
+        long adds;
+    }
+
+}
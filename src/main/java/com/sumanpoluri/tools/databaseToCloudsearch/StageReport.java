@@ -0,0 +1,210 @@
+package com.sumanpoluri.tools.databaseToCloudsearch;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.DecimalFormat;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Breaks the wall-clock time of a flight recording down by the stages of the extract and upload process, using the
+ * events in StageEvents.
+ */
+public class StageReport {
+    //==================================================================================================================
+    // Class fields
+    //==================================================================================================================
+    private static final String JFR_FILE = System.getProperty("JFR_FILE");
+    private static final DecimalFormat DF_2_DECIMALS = new DecimalFormat("#0.00");
+    private static final DecimalFormat DF_1_DECIMAL = new DecimalFormat("#0.0");
+    private static final String STAGE_FETCH = "JDBC fetch";
+    private static final String STAGE_CONVERT = "Column conversion";
+    private static final String STAGE_TEXT = "Text read and scrub";
+    private static final String STAGE_CHILDREN = "Child rows";
+    private static final String STAGE_LOOKUPS = "Lookups";
+    private static final String STAGE_ENCODE = "Document JSON and sizing";
+    private static final String STAGE_SEAL = "Batch serialization";
+    private static final String STAGE_THROTTLE = "Throttle wait";
+    private static final String STAGE_UPLOAD = "Upload (network)";
+
+    //==================================================================================================================
+    // Instance fields
+    //==================================================================================================================
+    private Map<String, Long> stageNanos = new LinkedHashMap<>();
+    private Map<String, Long> stageCounts = new LinkedHashMap<>();
+    private Instant firstStart;
+    private Instant lastEnd;
+    private long documents = 0L;
+    private long batches = 0L;
+    private long batchBytes = 0L;
+    private double fillRatioTotal = 0.0;
+
+    //==================================================================================================================
+    // Constructors
+    //==================================================================================================================
+    /**
+     * Main constructor
+     */
+    public StageReport() {
+        for (String stage : new String[] {STAGE_FETCH, STAGE_CONVERT, STAGE_TEXT, STAGE_CHILDREN, STAGE_LOOKUPS,
+                STAGE_ENCODE, STAGE_SEAL, STAGE_THROTTLE, STAGE_UPLOAD}) {
+            this.stageNanos.put(stage, 0L);
+            this.stageCounts.put(stage, 0L);
+        }
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    /**
+     * Prints the report for the recording given in JFR_FILE.
+     */
+    public static void printReport() {
+        if (JFR_FILE == null || JFR_FILE.trim().isEmpty()) {
+            System.out.println("Set JFR_FILE to the flight recording to report on");
+            return;
+        }
+
+        Path path = Paths.get(JFR_FILE.trim());
+        if (!Files.exists(path)) {
+            System.out.println("No flight recording found at " + path);
+            return;
+        }
+
+        StageReport report = new StageReport();
+        try (RecordingFile recordingFile = new RecordingFile(path)) {
+            while (recordingFile.hasMoreEvents()) {
+                report.add(recordingFile.readEvent());
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read the flight recording at " + path);
+            e.printStackTrace();
+            return;
+        }
+        report.print();
+    }
+
+    /**
+     * Adds an event to the report. Events other than the ones in StageEvents are ignored.
+     *
+     * @param event Recorded event
+     */
+    private void add(RecordedEvent event) {
+        String name = event.getEventType().getName();
+        if (!name.startsWith(StageEvents.NAME_PREFIX)) {
+            return;
+        }
+
+        long nanos = event.getDuration().toNanos();
+        switch (name.substring(StageEvents.NAME_PREFIX.length())) {
+            case "RowFetch":
+                addTime(STAGE_FETCH, nanos);
+                break;
+            case "RowConvert":
+                long textNanos = event.getLong("textDuration");
+                addTime(STAGE_CONVERT, nanos - textNanos);
+                addTime(STAGE_TEXT, textNanos);
+                break;
+            case "ChildJoin":
+                addTime(STAGE_CHILDREN, nanos);
+                break;
+            case "LookupEnrich":
+                addTime(STAGE_LOOKUPS, nanos);
+                break;
+            case "DocumentEncode":
+                addTime(STAGE_ENCODE, nanos);
+                this.documents++;
+                break;
+            case "BatchSeal":
+                addTime(STAGE_SEAL, nanos);
+                this.batches++;
+                this.batchBytes += event.getLong("bytes");
+                this.fillRatioTotal += event.getDouble("fillRatio");
+                break;
+            case "ThrottleWait":
+                addTime(STAGE_THROTTLE, nanos);
+                break;
+            case "Upload":
+                addTime(STAGE_UPLOAD, nanos);
+                break;
+            default:
+                return;
+        }
+
+        if (this.firstStart == null || event.getStartTime().isBefore(this.firstStart)) {
+            this.firstStart = event.getStartTime();
+        }
+        if (this.lastEnd == null || event.getEndTime().isAfter(this.lastEnd)) {
+            this.lastEnd = event.getEndTime();
+        }
+    }
+
+    /**
+     * Adds time to a stage.
+     *
+     * @param stage Name of the stage
+     * @param nanos Time in nanoseconds
+     */
+    private void addTime(
+            String stage,
+            long nanos) {
+        this.stageNanos.put(stage, this.stageNanos.get(stage) + nanos);
+        this.stageCounts.put(stage, this.stageCounts.get(stage) + 1);
+    }
+
+    /**
+     * Prints the report.
+     */
+    private void print() {
+        if (this.firstStart == null) {
+            System.out.println("No DatabaseToCloudsearch events found in the flight recording");
+            return;
+        }
+
+        long wallNanos = Duration.between(this.firstStart, this.lastEnd).toNanos();
+        long stagesNanos = 0L;
+        System.out.println("-----------------------------");
+        System.out.println("Wall clock               = " + DF_2_DECIMALS.format(wallNanos / 1e9) + "s");
+        System.out.println("Documents                = " + this.documents);
+        double averageFill = this.batches == 0 ? 0 : this.fillRatioTotal / this.batches;
+        double averageSize = this.batches == 0 ? 0 : this.batchBytes / (double) this.batches;
+        System.out.println("Batches                  = " + this.batches +
+                ", average fill = " + DF_1_DECIMAL.format(100 * averageFill) + "%" +
+                ", average size = " + DF_2_DECIMALS.format(averageSize / (1024 * 1024)) + " MB");
+        System.out.println("-----------------------------");
+        for (Map.Entry<String, Long> entry : this.stageNanos.entrySet()) {
+            stagesNanos += entry.getValue();
+            System.out.println(String.format(
+                    "%-25s= %10ss %6s%% (%d events)",
+                    entry.getKey(),
+                    DF_2_DECIMALS.format(entry.getValue() / 1e9),
+                    DF_1_DECIMAL.format(100.0 * entry.getValue() / wallNanos),
+                    this.stageCounts.get(entry.getKey())));
+        }
+        // The stages overlap when uploads are asynchronous (USE_ASYNC) and in keyset mode, where the pages are fetched on
+        // the PageFetcher thread while the main thread uploads. The time of the stages can then add up to more than the
+        // wall clock, so the remainder is floored at 0 and the excess is shown as overlap.
+        long otherNanos = Math.max(0L, wallNanos - stagesNanos);
+        System.out.println(String.format(
+                "%-25s= %10ss %6s%%",
+                "Other",
+                DF_2_DECIMALS.format(otherNanos / 1e9),
+                DF_1_DECIMAL.format(100.0 * otherNanos / wallNanos)));
+        if (stagesNanos > wallNanos) {
+            System.out.println(String.format(
+                    "%-25s= %10ss %6s%%",
+                    "Overlap between stages",
+                    DF_2_DECIMALS.format((stagesNanos - wallNanos) / 1e9),
+                    DF_1_DECIMAL.format(100.0 * (stagesNanos - wallNanos) / wallNanos)));
+        }
+        System.out.println("-----------------------------");
+    }
+
+}
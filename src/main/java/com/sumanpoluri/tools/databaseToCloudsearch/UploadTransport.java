@@ -0,0 +1,296 @@
+package com.sumanpoluri.tools.databaseToCloudsearch;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.client.builder.ExecutorFactory;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.services.cloudsearchdomain.AmazonCloudSearchDomain;
+import com.amazonaws.services.cloudsearchdomain.AmazonCloudSearchDomainAsync;
+import com.amazonaws.services.cloudsearchdomain.AmazonCloudSearchDomainAsyncClient;
+import com.amazonaws.services.cloudsearchdomain.AmazonCloudSearchDomainClient;
+import org.apache.http.NoHttpResponseException;
+
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the Cloudsearch domain clients used for the uploads and for the searches of the verification. One client of
+ * each kind is built for the whole run, so that connections (and their TLS sessions) are pooled and kept alive across
+ * batches instead of being opened for every batch. The clients have explicit connect, socket and request timeouts, so
+ * a stalled upload fails in bounded time instead of hanging the run.
+ * <p>
+ * Uploading the same documents again is idempotent, so uploads that time out or fail on the server side are retried up
+ * to UPLOAD_MAX_ATTEMPTS times, with a backoff that doubles on every attempt. The retries are done here rather than by
+ * the SDK, so that every attempt waits for the upload rate limit and is sent with a fresh request body.
+ * </p>
+ */
+public class UploadTransport {
+    //==================================================================================================================
+    // Class fields
+    //==================================================================================================================
+    private static final String ACCESS_KEY = System.getProperty("AWS_ACCESS_KEY_ID");
+    private static final String SECRET_KEY = System.getProperty("AWS_SECRET_ACCESS_KEY");
+    private static final String CS_DOC_ENDPOINT = System.getProperty("AWS_CS_DOC_ENDPOINT");
+    private static final String SIGNING_REGION = System.getProperty("AWS_SIGNING_REGION");
+    private static final String CS_SEARCH_ENDPOINT = System.getProperty("AWS_CS_SEARCH_ENDPOINT");
+    private static final int MAX_CONNECTIONS = (int) Utils.getLongProperty("UPLOAD_MAX_CONNECTIONS", 4L);
+    private static final int CONNECT_TIMEOUT = (int) Utils.getLongProperty("UPLOAD_CONNECT_TIMEOUT", 10000L); // in ms
+    private static final int SOCKET_TIMEOUT = (int) Utils.getLongProperty("UPLOAD_SOCKET_TIMEOUT", 60000L); // in ms
+    private static final int REQUEST_TIMEOUT = (int) Utils.getLongProperty("UPLOAD_REQUEST_TIMEOUT", 120000L); // in ms
+    private static final long CONNECTION_TTL = Utils.getLongProperty("UPLOAD_CONNECTION_TTL", 300000L); // in ms
+    private static final long CONNECTION_MAX_IDLE = Utils.getLongProperty("UPLOAD_CONNECTION_MAX_IDLE", 60000L); // ms
+    private static final int MAX_ATTEMPTS = (int) Utils.getLongProperty("UPLOAD_MAX_ATTEMPTS", 3L);
+    private static final long RETRY_BACKOFF = Utils.getLongProperty("UPLOAD_RETRY_BACKOFF", 1000L); // in ms
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static AmazonCloudSearchDomain domain;
+    private static AmazonCloudSearchDomainAsync asyncDomain;
+    private static AmazonCloudSearchDomain searchDomain;
+    private static ScheduledExecutorService retryScheduler;
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    /**
+     * Returns the shared Cloudsearch domain client. Builds it if none already available.
+     *
+     * @return A AmazonCloudSearchDomain object
+     */
+    public static synchronized AmazonCloudSearchDomain getDomain() {
+        if (domain == null) {
+            domain = AmazonCloudSearchDomainClient
+                    .builder()
+                    .withCredentials(getCredentialsProvider())
+                    .withEndpointConfiguration(getEndpointConfiguration())
+                    .withClientConfiguration(getClientConfiguration())
+                    .build();
+        }
+        return domain;
+    }
+
+    /**
+     * Returns the shared asynchronous Cloudsearch domain client. Builds it if none already available. Its thread pool
+     * has one thread per connection.
+     *
+     * @return A AmazonCloudSearchDomainAsync object
+     */
+    public static synchronized AmazonCloudSearchDomainAsync getAsyncDomain() {
+        if (asyncDomain == null) {
+            asyncDomain = AmazonCloudSearchDomainAsyncClient
+                    .asyncBuilder()
+                    .withCredentials(getCredentialsProvider())
+                    .withEndpointConfiguration(getEndpointConfiguration())
+                    .withClientConfiguration(getClientConfiguration())
+                    .withExecutorFactory(new ExecutorFactory() {
+                        @Override
+                        public ExecutorService newExecutor() {
+                            return Executors.newFixedThreadPool(
+                                    Math.max(1, MAX_CONNECTIONS),
+                                    getThreadFactory("UploaderAsync"));
+                        }
+                    })
+                    .build();
+        }
+        return asyncDomain;
+    }
+
+    /**
+     * Returns the shared Cloudsearch domain client for the search endpoint. Builds it if none already available.
+     *
+     * @return A AmazonCloudSearchDomain object
+     */
+    public static synchronized AmazonCloudSearchDomain getSearchDomain() {
+        if (searchDomain == null) {
+            searchDomain = AmazonCloudSearchDomainClient
+                    .builder()
+                    .withCredentials(getCredentialsProvider())
+                    .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(
+                            CS_SEARCH_ENDPOINT,
+                            SIGNING_REGION))
+                    .withClientConfiguration(getClientConfiguration())
+                    .build();
+        }
+        return searchDomain;
+    }
+
+    /**
+     * Shuts down the shared Cloudsearch domain client for the search endpoint.
+     */
+    public static synchronized void shutdownSearchDomain() {
+        if (searchDomain != null) {
+            searchDomain.shutdown();
+            searchDomain = null;
+        }
+    }
+
+    /**
+     * Shuts down the shared Cloudsearch domain client.
+     */
+    public static synchronized void shutdownDomain() {
+        if (domain != null) {
+            domain.shutdown();
+            domain = null;
+        }
+    }
+
+    /**
+     * Shuts down the shared asynchronous Cloudsearch domain client and the retry scheduler.
+     */
+    public static synchronized void shutdownAsyncDomain() {
+        if (asyncDomain != null) {
+            asyncDomain.shutdown();
+            asyncDomain = null;
+        }
+        if (retryScheduler != null) {
+            retryScheduler.shutdown();
+            retryScheduler = null;
+        }
+    }
+
+    /**
+     * Returns whether another attempt should be made after an upload failed.
+     *
+     * @param e The exception the upload failed with
+     * @param attempt Number of the attempt that failed, starting at 1
+     * @return true if the upload should be retried
+     */
+    public static boolean shouldRetry(
+            Exception e,
+            int attempt) {
+        return attempt < MAX_ATTEMPTS && isRetryable(e);
+    }
+
+    /**
+     * Returns whether an upload that failed with the given exception can succeed if attempted again. Timeouts,
+     * connection errors, server errors (HTTP 5xx) and throttling (HTTP 429) are retryable; errors caused by the
+     * documents are not. Other client errors (For e.g., a response that cannot be read) are not retryable either,
+     * although the SDK marks most of them as retryable.
+     *
+     * @param e The exception the upload failed with
+     * @return true if the upload can be retried
+     */
+    public static boolean isRetryable(Exception e) {
+        if (e instanceof AmazonServiceException) {
+            int statusCode = ((AmazonServiceException) e).getStatusCode();
+            return statusCode >= 500 || statusCode == HTTP_TOO_MANY_REQUESTS;
+        }
+        if (!(e instanceof AmazonClientException)) {
+            return false;
+        }
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            // Timeouts (For e.g., SocketTimeoutException, ConnectTimeoutException or the request timeout) are
+            // InterruptedIOExceptions. Refused and reset connections are SocketExceptions.
+            if (cause instanceof InterruptedIOException ||
+                    cause instanceof SocketException ||
+                    cause instanceof NoHttpResponseException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the time to wait before the next attempt: RETRY_BACKOFF, doubled on every attempt, plus up to half of
+     * that again at random so that retries do not line up.
+     *
+     * @param attempt Number of the attempt that failed, starting at 1
+     * @return A long with the time in milliseconds
+     */
+    public static long getRetryDelay(int attempt) {
+        long delay = RETRY_BACKOFF << Math.min(attempt - 1, 16);
+        return delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Waits before the next attempt of a synchronous upload.
+     *
+     * @param attempt Number of the attempt that failed, starting at 1
+     */
+    public static void waitBeforeRetry(int attempt) {
+        try {
+            Thread.sleep(getRetryDelay(attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs the next attempt of an asynchronous upload after the retry delay, without holding up the client threads.
+     *
+     * @param retry The next attempt
+     * @param attempt Number of the attempt that failed, starting at 1
+     */
+    public static synchronized void scheduleRetry(
+            Runnable retry,
+            int attempt) {
+        if (retryScheduler == null) {
+            retryScheduler = Executors.newSingleThreadScheduledExecutor(getThreadFactory("UploadRetry"));
+        }
+        retryScheduler.schedule(retry, getRetryDelay(attempt), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the configuration of the clients: a bounded connection pool, keep-alive, timeouts and no retries by the
+     * SDK itself.
+     *
+     * @return A ClientConfiguration object
+     */
+    private static ClientConfiguration getClientConfiguration() {
+        return new ClientConfiguration()
+                .withMaxConnections(Math.max(1, MAX_CONNECTIONS))
+                .withConnectionTimeout(CONNECT_TIMEOUT)
+                .withSocketTimeout(SOCKET_TIMEOUT)
+                .withRequestTimeout(REQUEST_TIMEOUT)
+                .withTcpKeepAlive(true)
+                .withConnectionTTL(CONNECTION_TTL)
+                .withConnectionMaxIdleMillis(CONNECTION_MAX_IDLE)
+                .withRetryPolicy(PredefinedRetryPolicies.NO_RETRY_POLICY);
+    }
+
+    /**
+     * Returns the endpoint of the Cloudsearch domain.
+     *
+     * @return A AwsClientBuilder.EndpointConfiguration object
+     */
+    private static AwsClientBuilder.EndpointConfiguration getEndpointConfiguration() {
+        return new AwsClientBuilder.EndpointConfiguration(CS_DOC_ENDPOINT, SIGNING_REGION);
+    }
+
+    /**
+     * Returns the provider of the AWS credentials.
+     *
+     * @return A AWSStaticCredentialsProvider object
+     */
+    private static AWSStaticCredentialsProvider getCredentialsProvider() {
+        AWSCredentials awsCredentials = new BasicAWSCredentials(ACCESS_KEY, SECRET_KEY);
+        return new AWSStaticCredentialsProvider(awsCredentials);
+    }
+
+    /**
+     * Returns a factory of daemon threads, so that an idle client never keeps the program from exiting.
+     *
+     * @param name Name of the threads
+     * @return A ThreadFactory object
+     */
+    public static ThreadFactory getThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+}
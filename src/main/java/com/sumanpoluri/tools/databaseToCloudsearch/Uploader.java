@@ -1,11 +1,6 @@
 package com.sumanpoluri.tools.databaseToCloudsearch;
 
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.client.builder.AwsClientBuilder;
-import com.amazonaws.services.cloudsearchdomain.AmazonCloudSearchDomain;
-import com.amazonaws.services.cloudsearchdomain.AmazonCloudSearchDomainClient;
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.cloudsearchdomain.model.ContentType;
 import com.amazonaws.services.cloudsearchdomain.model.DocumentServiceException;
 import com.amazonaws.services.cloudsearchdomain.model.UploadDocumentsRequest;
@@ -18,7 +13,9 @@ import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 /**
@@ -28,21 +25,12 @@ public class Uploader extends BaseUploader {
     //==================================================================================================================
     // Class fields
     //==================================================================================================================
-    private static final String ACCESS_KEY = System.getProperty("AWS_ACCESS_KEY_ID");
-    private static final String SECRET_KEY = System.getProperty("AWS_SECRET_ACCESS_KEY");
-    private static final String CS_DOC_ENDPOINT = System.getProperty("AWS_CS_DOC_ENDPOINT");
-    private static final String SIGNING_REGION = System.getProperty("AWS_SIGNING_REGION");
+    private static final long ISOLATE_MAX_REJECTIONS = Utils.getLongProperty("ISOLATE_MAX_REJECTIONS", 6L);
     private static final DecimalFormat DF_2_DECIMALS = new DecimalFormat("#0.00");
     private static final DateFormat DF_FULL = DateFormat.getDateTimeInstance(
             DateFormat.FULL,
             DateFormat.FULL,
             Locale.US);
-    /**
-     * Document batches are limited to one batch every 10 seconds
-     */
-    private static final long INTERVAL_BETWEEN_BATCHES = 10000; // in milliseconds
-    private static AmazonCloudSearchDomain domain;
-    private static long lastUploadedTime = 0L;
 
     //==================================================================================================================
     // Constructors
@@ -54,73 +42,207 @@ public class Uploader extends BaseUploader {
     //==================================================================================================================
 
     /**
-     * Uploads the batch to AWS Cloudsearch.
+     * Uploads the batch to AWS Cloudsearch. If the batch is rejected because of its documents and ISOLATE_FAILURES is
+     * set, the documents that caused the rejection are isolated and quarantined, and the rest of the batch is uploaded.
      *
      * @param batch Batch of documents with the data.
      */
     public static void uploadBatch(JSONArray batch) {
-        InputStream inputStream = new ByteArrayInputStream(batch.toString().getBytes(StandardCharsets.UTF_8));
-        UploadDocumentsRequest req = new UploadDocumentsRequest()
-                .withDocuments(inputStream)
-                .withContentLength(Long.valueOf(Utils.getBatchSize(batch)))
-                .withContentType(ContentType.Applicationjson);
-        // Per AWS CloudSearch developer docs:
-        // Document batches are limited to one batch every 10 seconds and 5 MB per batch.
-        // So, wait for 10s before submitting another batch
-        long currentTime = System.currentTimeMillis();
-        if (currentTime - lastUploadedTime < INTERVAL_BETWEEN_BATCHES) {
-            try {
-                Thread.sleep(10000 - (currentTime - lastUploadedTime));
-            } catch (InterruptedException e) {
-                System.err.println("Thread sleep failed");
-                e.printStackTrace();
+        try {
+            submitBatch(batch, null);
+        } catch (DocumentServiceException e) {
+            if (isIsolatable(e)) {
+                isolateFailures(batch, e);
+                return;
             }
+
+            logFailedBatch(batch);
+            throw e;
         }
-        lastUploadedTime = currentTime;
+    }
+
+    /**
+     * Finds the documents that caused a batch to be rejected and uploads the rest. If the error names a document, that
+     * document is quarantined and the rest of the batch is submitted again. Otherwise, the batch is split in halves and
+     * each half is submitted again, recursively, until the rejected documents are found. Every submission waits for the
+     * upload rate limit like any other batch. The outcome is recorded in the ledger against the rejected batch.
+     * <p>
+     * The isolation is stopped, and the batch saved to a log file, if a part is rejected with an error about the
+     * request as a whole, or if ISOLATE_MAX_REJECTIONS parts are rejected before any part is accepted, which means
+     * that the error is not about a few of the documents.
+     * </p>
+     *
+     * @param batch Batch of documents that was rejected
+     * @param e The exception the batch was rejected with
+     */
+    public static void isolateFailures(
+            JSONArray batch,
+            DocumentServiceException e) {
+        Ledger.Isolation isolation = new Ledger.Isolation(batch);
+        String error = null;
         try {
-            UploadDocumentsResult result = getDomain().uploadDocuments(req);
+            isolate(batch, e, isolation);
+        } catch (RuntimeException e1) {
+            error = e1.getMessage();
+            logFailedBatch(batch);
+            throw e1;
+        } finally {
+            isolation.finish(error);
+        }
+    }
+
+    /**
+     * Isolates the failures of a rejected batch, or of a part of it.
+     *
+     * @param batch Batch, or part of a batch, that was rejected
+     * @param e The exception it was rejected with
+     * @param isolation The isolation the outcome is added to
+     * @throws DocumentServiceException if the error turns out not to be about the documents
+     */
+    private static void isolate(
+            JSONArray batch,
+            DocumentServiceException e,
+            Ledger.Isolation isolation) {
+        if (Utils.getNumberOfDocsInBatch(batch) == 1) {
+            quarantine(batch.getJSONObject(0), e.getMessage());
+            isolation.quarantined(batch.getJSONObject(0), e.getMessage());
+            return;
+        }
+
+        List<JSONArray> parts = new ArrayList<>();
+        int failedIndex = Ledger.findDocumentIndex(batch, e.getMessage());
+        if (failedIndex >= 0) {
+            quarantine(batch.getJSONObject(failedIndex), e.getMessage());
+            isolation.quarantined(batch.getJSONObject(failedIndex), e.getMessage());
+            JSONArray rest = new JSONArray();
+            for (int i=0; i<batch.length(); i++) {
+                if (i != failedIndex) {
+                    rest.put(batch.get(i));
+                }
+            }
+            parts.add(rest);
+        } else {
+            int middle = batch.length() / 2;
+            JSONArray firstHalf = new JSONArray();
+            JSONArray secondHalf = new JSONArray();
+            for (int i=0; i<batch.length(); i++) {
+                (i < middle ? firstHalf : secondHalf).put(batch.get(i));
+            }
+            parts.add(firstHalf);
+            parts.add(secondHalf);
+        }
+
+        List<JSONArray> rejectedParts = new ArrayList<>();
+        List<DocumentServiceException> rejections = new ArrayList<>();
+        for (JSONArray part : parts) {
+            if (Utils.getNumberOfDocsInBatch(part) == 0) {
+                continue;
+            }
             System.out.println(
                     DF_FULL.format(new Date()) +
-                            ": Submitted batch upload - size = " +
-                            DF_2_DECIMALS.format(Utils.getBatchSize(batch) / (double) (1024 * 1024)) + " MB, " +
-                            "# of documents = " + Utils.getNumberOfDocsInBatch(batch) + " documents...");
-            handleResult(result, lastUploadedTime);
-        } catch (DocumentServiceException e) {
+                            ": Isolating failures - submission " + isolation.submitted() + ", resubmitting " +
+                            Utils.getNumberOfDocsInBatch(part) + " of " + Utils.getNumberOfDocsInBatch(batch) +
+                            " documents...");
             try {
-                writeToFile(req.getDocuments());
-            } catch (IOException e1) {
-                System.err.println("Failed to log the data that caused the DocumentServiceException");
-                e1.printStackTrace();
+                submitBatch(part, isolation);
+            } catch (DocumentServiceException e1) {
+                if (!isIsolatable(e1)) {
+                    throw e1;
+                }
+                if (isolation.rejected() >= ISOLATE_MAX_REJECTIONS && !isolation.isAnyAccepted()) {
+                    // Splitting does not narrow the error down, so it is about the batch rather than its documents
+                    throw e1;
+                }
+                rejectedParts.add(part);
+                rejections.add(e1);
             }
+        }
 
-            throw e;
+        for (int i=0; i<rejectedParts.size(); i++) {
+            isolate(rejectedParts.get(i), rejections.get(i), isolation);
         }
     }
 
     /**
-     * Shuts down the domain client.
+     * Saves a batch that could not be uploaded to a log file, so that it can be uploaded again.
+     *
+     * @param batch Batch of documents with the data.
      */
-    public static void done() {
-        domain.shutdown();
+    private static void logFailedBatch(JSONArray batch) {
+        try {
+            writeToFile(new ByteArrayInputStream(batch.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e1) {
+            System.err.println("Failed to log the data that caused the DocumentServiceException");
+            e1.printStackTrace();
+        }
     }
 
     /**
-     * Returns the Cloudsearch domain client. Builds one if none already available.
+     * Submits the batch to AWS Cloudsearch. Uploads that time out or fail on the server side are attempted again, with
+     * a fresh request, as long as UploadTransport allows it.
      *
-     * @return A AmazonCloudSearchDomain object
+     * @param batch Batch of documents with the data.
+     * @param isolation The isolation of failures the batch is submitted for, or null
+     * @throws DocumentServiceException if the batch is rejected
      */
-    private static AmazonCloudSearchDomain getDomain() {
-        if (domain != null) {
-            return domain;
+    private static void submitBatch(
+            JSONArray batch,
+            Ledger.Isolation isolation) {
+        StageEvents.BatchSeal sealEvent = new StageEvents.BatchSeal();
+        sealEvent.begin();
+        byte[] batchBytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        sealEvent.documents = Utils.getNumberOfDocsInBatch(batch);
+        sealEvent.bytes = batchBytes.length;
+        sealEvent.fillRatio = batchBytes.length / (double) Batcher.MAX_BATCH_SIZE;
+        sealEvent.commit();
+        for (int attempt=1; ; attempt++) {
+            InputStream inputStream = new ByteArrayInputStream(batchBytes);
+            UploadDocumentsRequest req = new UploadDocumentsRequest()
+                    .withDocuments(inputStream)
+                    .withContentLength(Long.valueOf(batchBytes.length))
+                    .withContentType(ContentType.Applicationjson);
+            waitForUploadSlot();
+            long requestTime = System.currentTimeMillis();
+            StageEvents.Upload uploadEvent = new StageEvents.Upload();
+            uploadEvent.documents = Utils.getNumberOfDocsInBatch(batch);
+            uploadEvent.bytes = batchBytes.length;
+            uploadEvent.begin();
+            try {
+                UploadDocumentsResult result = UploadTransport.getDomain().uploadDocuments(req);
+                uploadEvent.status = result.getStatus();
+                uploadEvent.adds = result.getAdds() == null ? 0L : result.getAdds();
+                uploadEvent.commit();
+                System.out.println(
+                        DF_FULL.format(new Date()) +
+                                ": Submitted batch upload - size = " +
+                                DF_2_DECIMALS.format(batchBytes.length / (double) (1024 * 1024)) + " MB, " +
+                                "# of documents = " + Utils.getNumberOfDocsInBatch(batch) + " documents...");
+                handleResult(batch, result, requestTime, isolation);
+                return;
+            } catch (AmazonClientException e) {
+                uploadEvent.status = "exception";
+                uploadEvent.commit();
+                if (UploadTransport.shouldRetry(e, attempt)) {
+                    System.err.println(
+                            DF_FULL.format(new Date()) +
+                                    ": Upload attempt " + attempt + " failed, retrying. Message = " + e.getMessage());
+                    UploadTransport.waitBeforeRetry(attempt);
+                    continue;
+                }
+                // A batch whose failures are isolated is recorded once the isolation ends
+                if (isolation == null && !isIsolatable(e)) {
+                    Ledger.recordFailure(batch, e.getMessage(), System.currentTimeMillis() - requestTime);
+                }
+                throw e;
+            }
         }
+    }
 
-        AWSCredentials awsCredentials = new BasicAWSCredentials(ACCESS_KEY, SECRET_KEY);
-        domain = AmazonCloudSearchDomainClient
-                .builder()
-                .withCredentials(new AWSStaticCredentialsProvider(awsCredentials))
-                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(CS_DOC_ENDPOINT, SIGNING_REGION))
-                .build();
-        return domain;
+    /**
+     * Shuts down the domain client.
+     */
+    public static void done() {
+        UploadTransport.shutdownDomain();
     }
 
 }
@@ -1,12 +1,7 @@
 package com.sumanpoluri.tools.databaseToCloudsearch;
 
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.handlers.AsyncHandler;
 import com.amazonaws.services.cloudsearchdomain.AmazonCloudSearchDomainAsync;
-import com.amazonaws.services.cloudsearchdomain.AmazonCloudSearchDomainAsyncClient;
 import com.amazonaws.services.cloudsearchdomain.model.ContentType;
 import com.amazonaws.services.cloudsearchdomain.model.DocumentServiceException;
 import com.amazonaws.services.cloudsearchdomain.model.UploadDocumentsRequest;
@@ -21,6 +16,8 @@ import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Uploads the documents to AWS Cloudsearch asynchronously.
@@ -29,20 +26,18 @@ public class UploaderAsync extends BaseUploader {
     //==================================================================================================================
     // Class fields
     //==================================================================================================================
-    private static final String ACCESS_KEY = System.getProperty("AWS_ACCESS_KEY_ID");
-    private static final String SECRET_KEY = System.getProperty("AWS_SECRET_ACCESS_KEY");
-    private static final String CS_DOC_ENDPOINT = System.getProperty("AWS_CS_DOC_ENDPOINT");
-    private static final String SIGNING_REGION = System.getProperty("AWS_SIGNING_REGION");
     private static final DecimalFormat DF_2_DECIMALS = new DecimalFormat("#0.00");
     private static final DateFormat DF_FULL = DateFormat.getDateTimeInstance(
             DateFormat.FULL,
             DateFormat.FULL,
             Locale.US);
-    /**
-     * Document batches are limited to one batch every 10 seconds
-     */
-    private static final long INTERVAL_BETWEEN_BATCHES = 10000; // in milliseconds
-    private static long lastUploadedTime = 0L;
+    private static final Object LOCK = new Object();
+    // Batches submitted and not yet finished, including their retries and the isolation of their failures
+    private static int uploadsInFlight = 0;
+    // Isolates the failures of rejected batches, one batch at a time, off the threads of the client
+    private static ExecutorService isolationExecutor;
+    // First failure of a batch upload since the last call of awaitUploads, reported off the caller's thread
+    private static RuntimeException uploadFailure;
 
     //==================================================================================================================
     // Constructors
@@ -59,59 +54,184 @@ public class UploaderAsync extends BaseUploader {
      * @param batch Batch of documents with the data.
      */
     public static void uploadBatch(JSONArray batch) {
-        InputStream inputStream = new ByteArrayInputStream(batch.toString().getBytes(StandardCharsets.UTF_8));
+        StageEvents.BatchSeal sealEvent = new StageEvents.BatchSeal();
+        sealEvent.begin();
+        byte[] batchBytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        sealEvent.documents = Utils.getNumberOfDocsInBatch(batch);
+        sealEvent.bytes = batchBytes.length;
+        sealEvent.fillRatio = batchBytes.length / (double) Batcher.MAX_BATCH_SIZE;
+        sealEvent.commit();
+        synchronized (LOCK) {
+            uploadsInFlight++;
+        }
+        submitBatch(batch, batchBytes, 1);
+    }
+
+    /**
+     * Waits for the uploads in progress, including their retries and the isolation of their failures, to finish.
+     * Throws the first failure reported since the last call, so that the caller (For e.g., Tail Mode) can keep the
+     * documents and upload them again.
+     */
+    public static void awaitUploads() {
+        RuntimeException failure;
+        synchronized (LOCK) {
+            while (uploadsInFlight > 0) {
+                try {
+                    LOCK.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for the uploads in progress", e);
+                }
+            }
+            failure = uploadFailure;
+            uploadFailure = null;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Waits for the uploads in progress, including their retries and the isolation of their failures, to finish and
+     * shuts down the domain clients. The isolation uploads with the default client, so it is shut down as well.
+     */
+    public static void done() {
+        synchronized (LOCK) {
+            while (uploadsInFlight > 0) {
+                try {
+                    LOCK.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        UploadTransport.shutdownAsyncDomain();
+        UploadTransport.shutdownDomain();
+        synchronized (LOCK) {
+            if (isolationExecutor != null) {
+                isolationExecutor.shutdown();
+                isolationExecutor = null;
+            }
+        }
+    }
+
+    /**
+     * Isolates the failures of a rejected batch on the isolation thread, so that the thread of the client that
+     * reported the rejection is not held up by the resubmissions. The batch upload is finished once the isolation ends.
+     *
+     * @param batch Batch of documents that was rejected
+     * @param e The exception the batch was rejected with
+     */
+    private static void isolateFailures(
+            final JSONArray batch,
+            final DocumentServiceException e) {
+        synchronized (LOCK) {
+            if (isolationExecutor == null) {
+                isolationExecutor = Executors.newSingleThreadExecutor(UploadTransport.getThreadFactory("Isolation"));
+            }
+            isolationExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // Isolated with the default client, one submission at a time. The outcome is recorded in the
+                        // ledger once the isolation ends.
+                        Uploader.isolateFailures(batch, e);
+                    } catch (RuntimeException e1) {
+                        // The isolation was stopped. The batch is already saved to a log file.
+                        System.err.println(
+                                DF_FULL.format(new Date()) +
+                                        ": Failure isolation stopped! Message = " + e1.getMessage());
+                        uploadFailed(e1);
+                    } finally {
+                        uploadFinished();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Submits an attempt of the batch upload. A fresh request is built for every attempt.
+     *
+     * @param batch Batch of documents with the data.
+     * @param batchBytes The batch, serialized
+     * @param attempt Number of the attempt, starting at 1
+     */
+    private static void submitBatch(
+            JSONArray batch,
+            byte[] batchBytes,
+            int attempt) {
+        InputStream inputStream = new ByteArrayInputStream(batchBytes);
         UploadDocumentsRequest req = new UploadDocumentsRequest()
                 .withDocuments(inputStream)
-                .withContentLength(Long.valueOf(Utils.getBatchSize(batch)))
+                .withContentLength(Long.valueOf(batchBytes.length))
                 .withContentType(ContentType.Applicationjson);
-        // Per AWS CloudSearch developer docs:
-        // Document batches are limited to one batch every 10 seconds and 5 MB per batch.
-        // So, wait for 10s before submitting another batch
-        long currentTime = System.currentTimeMillis();
-        if (currentTime - lastUploadedTime < INTERVAL_BETWEEN_BATCHES) {
-            try {
-                Thread.sleep(10000 - (currentTime - lastUploadedTime));
-            } catch (InterruptedException e) {
-                System.err.println("Thread sleep failed");
-                e.printStackTrace();
-            }
-        }
-        lastUploadedTime = currentTime;
+        waitForUploadSlot();
+        long requestTime = System.currentTimeMillis();
+        StageEvents.Upload uploadEvent = new StageEvents.Upload();
+        uploadEvent.documents = Utils.getNumberOfDocsInBatch(batch);
+        uploadEvent.bytes = batchBytes.length;
+        uploadEvent.begin();
         try {
-            AmazonCloudSearchDomainAsync domain = getDomain();
+            AmazonCloudSearchDomainAsync domain = UploadTransport.getAsyncDomain();
             System.out.println(
                     DF_FULL.format(new Date()) +
                             ": About to upload async");
-            domain.uploadDocumentsAsync(req, new AsyncUploadHandler(domain));
+            domain.uploadDocumentsAsync(
+                    req,
+                    new AsyncUploadHandler(batch, batchBytes, attempt, requestTime, uploadEvent));
             System.out.println(
                     DF_FULL.format(new Date()) +
                             ": Submitted batch upload - size = " +
-                            DF_2_DECIMALS.format(Utils.getBatchSize(batch) / (double) (1024 * 1024)) + " MB, " +
+                            DF_2_DECIMALS.format(batchBytes.length / (double) (1024 * 1024)) + " MB, " +
                             "# of documents = " + Utils.getNumberOfDocsInBatch(batch) + " documents...");
-        } catch (DocumentServiceException e) {
-            try {
-                writeToFile(req.getDocuments());
-            } catch (IOException e1) {
-                System.err.println("Failed to log the data that caused the DocumentServiceException");
-                e1.printStackTrace();
-            }
+        } catch (RuntimeException e) {
+            // For e.g., a DocumentServiceException, or a client that was shut down
+            Ledger.recordFailure(batch, e.getMessage(), System.currentTimeMillis() - requestTime);
+            logFailedBatch(batchBytes);
+            uploadFinished();
 
             throw e;
         }
     }
 
     /**
-     * Returns a new asynchronous Cloudsearch domain client instance.
+     * Saves a batch that could not be uploaded to a log file, so that it can be uploaded again.
      *
-     * @return A AmazonCloudSearchDomainAsync object
+     * @param batchBytes The batch, serialized
      */
-    private static AmazonCloudSearchDomainAsync getDomain() {
-        AWSCredentials awsCredentials = new BasicAWSCredentials(ACCESS_KEY, SECRET_KEY);
-        return AmazonCloudSearchDomainAsyncClient
-                .asyncBuilder()
-                .withCredentials(new AWSStaticCredentialsProvider(awsCredentials))
-                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(CS_DOC_ENDPOINT, SIGNING_REGION))
-                .build();
+    private static void logFailedBatch(byte[] batchBytes) {
+        try {
+            writeToFile(new ByteArrayInputStream(batchBytes));
+        } catch (IOException e1) {
+            System.err.println("Failed to log the data of the failed upload");
+            e1.printStackTrace();
+        }
+    }
+
+    /**
+     * Keeps the failure of a batch upload reported off the caller's thread, for awaitUploads. Only the first failure is
+     * kept.
+     *
+     * @param e The exception the upload failed with
+     */
+    private static void uploadFailed(RuntimeException e) {
+        synchronized (LOCK) {
+            if (uploadFailure == null) {
+                uploadFailure = e;
+            }
+        }
+    }
+
+    /**
+     * Marks a batch upload as finished, after its last attempt.
+     */
+    private static void uploadFinished() {
+        synchronized (LOCK) {
+            uploadsInFlight--;
+            LOCK.notifyAll();
+        }
     }
 
     /**
@@ -121,39 +241,89 @@ public class UploaderAsync extends BaseUploader {
         //==================================================================================================================
         // Class fields
         //==================================================================================================================
-        private AmazonCloudSearchDomainAsync domain;
+        private JSONArray batch;
+        private byte[] batchBytes;
+        private int attempt;
+        private long requestTime;
+        private StageEvents.Upload uploadEvent;
 
         //==================================================================================================================
         // Constructors
         //==================================================================================================================
-        AsyncUploadHandler(AmazonCloudSearchDomainAsync domain) {
-            this.domain = domain;
+        AsyncUploadHandler(
+                JSONArray batch,
+                byte[] batchBytes,
+                int attempt,
+                long requestTime,
+                StageEvents.Upload uploadEvent) {
+            this.batch = batch;
+            this.batchBytes = batchBytes;
+            this.attempt = attempt;
+            this.requestTime = requestTime;
+            this.uploadEvent = uploadEvent;
         }
 
         //==================================================================================================================
         // Methods
         //==================================================================================================================
 
-        /**
-         * Shuts the Cloudsearch client.
-         */
-        private void done() {
-            this.domain.shutdown();
-        }
-
         @Override
         public void onError(Exception e) {
             System.err.println(
                     DF_FULL.format(new Date()) +
                             ": Upload failed! Message = " + e.getMessage());
             e.printStackTrace();
-            done();
+            this.uploadEvent.status = "exception";
+            this.uploadEvent.commit();
+            if (UploadTransport.shouldRetry(e, this.attempt)) {
+                System.err.println(
+                        DF_FULL.format(new Date()) +
+                                ": Upload attempt " + this.attempt + " failed, retrying.");
+                final JSONArray retryBatch = this.batch;
+                final byte[] retryBatchBytes = this.batchBytes;
+                final int nextAttempt = this.attempt + 1;
+                UploadTransport.scheduleRetry(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            submitBatch(retryBatch, retryBatchBytes, nextAttempt);
+                        } catch (RuntimeException e1) {
+                            // Thrown on the retry thread, nothing would see it. The failure is already recorded in
+                            // the ledger and the batch saved to a log file.
+                            System.err.println(
+                                    DF_FULL.format(new Date()) +
+                                            ": Upload attempt " + nextAttempt + " failed! Message = " +
+                                            e1.getMessage());
+                            e1.printStackTrace();
+                            uploadFailed(e1);
+                        }
+                    }
+                }, this.attempt);
+                return;
+            }
+
+            if (isIsolatable(e)) {
+                isolateFailures(this.batch, (DocumentServiceException) e);
+                return;
+            }
+            try {
+                Ledger.recordFailure(this.batch, e.getMessage(), System.currentTimeMillis() - this.requestTime);
+                uploadFailed(e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e));
+            } finally {
+                uploadFinished();
+            }
         }
 
         @Override
         public void onSuccess(UploadDocumentsRequest request, UploadDocumentsResult result) {
-            handleResult(result, lastUploadedTime);
-            done();
+            this.uploadEvent.status = result.getStatus();
+            this.uploadEvent.adds = result.getAdds() == null ? 0L : result.getAdds();
+            this.uploadEvent.commit();
+            try {
+                handleResult(this.batch, result, this.requestTime);
+            } finally {
+                uploadFinished();
+            }
         }
 
     }
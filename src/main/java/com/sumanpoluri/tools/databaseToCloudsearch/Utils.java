@@ -3,11 +3,20 @@ package com.sumanpoluri.tools.databaseToCloudsearch;
 import org.json.JSONArray;
 
 import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
 
 /**
  * Common utility methods.
  */
 public class Utils {
+    //==================================================================================================================
+    // Class fields
+    //==================================================================================================================
+    private static final String DB_URL = System.getProperty("DB_URL");
+
     //==================================================================================================================
     // Methods
     //==================================================================================================================
@@ -31,4 +40,145 @@ public class Utils {
         return obj.toString().getBytes(StandardCharsets.UTF_8).length;
     }
 
-}
+    /**
+     * Returns the number of bytes a character takes in a JSON string encoded in UTF-8, including the escaping done by
+     * org.json.
+     *
+     * @param c Character
+     * @return An int with the number of bytes
+     */
+    public static int getEncodedSize(char c) {
+        if (c == '"' || c == '\\' || c == '/' || c == '\b' || c == '\t' || c == '\n' || c == '\f' || c == '\r') {
+            return 2;
+        }
+        if (c < 0x20 || (c >= 0x80 && c < 0xA0) || (c >= 0x2000 && c < 0x2100)) {
+            return 6;
+        }
+        if (c < 0x80) {
+            return 1;
+        }
+        if (c < 0x800) {
+            return 2;
+        }
+        if (Character.isSurrogate(c)) {
+            // Half of a 4 byte character
+            return 2;
+        }
+        return 3;
+    }
+
+    /**
+     * Returns the number of bytes a value takes in a JSON document encoded in UTF-8, including the quotes.
+     *
+     * @param value Value
+     * @return An int with the number of bytes
+     */
+    public static int getEncodedSize(String value) {
+        if (value == null) {
+            return 0;
+        }
+
+        int size = 2; // quotes
+        for (int i=0; i<value.length(); i++) {
+            size += getEncodedSize(value.charAt(i));
+        }
+        return size;
+    }
+
+    /**
+     * Returns the value of a numeric VM argument.
+     *
+     * @param name Name of the VM argument
+     * @param defaultValue Value to use when the VM argument is omitted
+     * @return A long with the value of the VM argument
+     */
+    public static long getLongProperty(
+            String name,
+            long defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value, e);
+        }
+    }
+
+    /**
+     * Returns the value of a decimal VM argument.
+     *
+     * @param name Name of the VM argument
+     * @param defaultValue Value to use when the VM argument is omitted
+     * @return A double with the value of the VM argument
+     */
+    public static double getDoubleProperty(
+            String name,
+            double defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value, e);
+        }
+    }
+
+    /**
+     * Acquire database connection.
+     *
+     * @param user Username for the database
+     * @param password Password for the database
+     * @param host Hostname for the database
+     * @param port Port for the database
+     * @param database Name of the database
+     * @return A java.sql.Connection object
+     * @throws SQLException
+     */
+    public static Connection getDBConnection(
+            String user,
+            String password,
+            String host,
+            String port,
+            String database) throws SQLException {
+        Connection conn = null;
+        Properties connProps = new Properties();
+        connProps.put("user", user);
+        connProps.put("password", password);
+
+        // Build the url of the DB connection.
+        // This example shows how to build a MySQL URL with some sample connection properties at the end of the url
+        // string (e.g. characterEncoding, useCursorFetch, etc.). Change them as needed.
+        // DB_URL, if given, is used as is instead (For e.g., for another database or JDBC driver).
+        String url = "jdbc:mysql://" +
+                host + ":" +
+                port + "/" +
+                database + "?useUnicode=yes&useAffectedRows=true&characterEncoding=utf-8&useCursorFetch=true";
+        if (DB_URL != null && !DB_URL.trim().isEmpty()) {
+            url = DB_URL.trim();
+        }
+        conn = DriverManager.getConnection(url, connProps);
+        return conn;
+    }
+
+    /**
+     * Close database connection.
+     *
+     * @param conn A java.sql.Connection object
+     */
+    public static void closeDBConnection(Connection conn) {
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,217 @@
+package com.sumanpoluri.tools.databaseToCloudsearch;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.text.DecimalFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Runs the whole extract and upload process against a generated table in an embedded H2 database and a local stand-in
+ * for the Cloudsearch document endpoint, and reports the throughput, the batch fill ratio, the peak heap and the time
+ * spent in garbage collection.
+ * <p>
+ * Run it with 'mvn -Pbenchmark test-compile exec:java' and the BENCH_* VM arguments described in the README. Any other
+ * VM argument of the program (For e.g., USE_ASYNC, KEYSET_PAGINATION, PAGE_SIZE) can be given as well. With
+ * BENCH_VERIFY=Y, the stand-in endpoint loses a few of the documents and the verification is run after the load to find
+ * and upload them again.
+ * </p>
+ */
+public class LoadBenchmark {
+    //==================================================================================================================
+    // Class fields
+    //==================================================================================================================
+    private static final DecimalFormat DF_2_DECIMALS = new DecimalFormat("#0.00");
+    private static final DecimalFormat DF_1_DECIMAL = new DecimalFormat("#0.0");
+    private static final DateFormat DF_FULL = DateFormat.getDateTimeInstance(
+            DateFormat.FULL,
+            DateFormat.FULL,
+            Locale.US);
+    private static final long MAX_BATCH_SIZE = 5000000; // Same as Batcher.MAX_BATCH_SIZE
+    private static final long MB = 1024 * 1024;
+
+    //==================================================================================================================
+    // Main method
+    //==================================================================================================================
+    public static void main(String[] args) throws Exception {
+        long rows = getLong("BENCH_ROWS", 1000000L);
+        int nameLength = (int) getLong("BENCH_NAME_LENGTH", 12L);
+        boolean clobNames = getFlag("BENCH_CLOB_NAMES");
+        double multiByteRate = getDouble("BENCH_MULTI_BYTE_RATE", 0.0);
+        double invalidCharRate = getDouble("BENCH_INVALID_CHAR_RATE", 0.0);
+        long seed = getLong("BENCH_SEED", 42L);
+        long uploadLatency = getLong("BENCH_UPLOAD_LATENCY", 0L);
+        boolean reuseDb = getFlag("BENCH_REUSE_DB");
+        boolean verify = getFlag("BENCH_VERIFY");
+        double verifyDropRate = getDouble("BENCH_VERIFY_DROP_RATE", 0.001);
+        File workDir = new File(System.getProperty("java.io.tmpdir"), "DatabaseToCloudsearch_benchmark");
+        String dbUrl = getString(
+                "BENCH_DB_URL",
+                "jdbc:h2:file:" + new File(workDir, "db").getAbsolutePath());
+
+        // The program reads its VM arguments when its classes are loaded, so they are all set before it is run.
+        StubCloudsearchEndpoint endpoint = new StubCloudsearchEndpoint(uploadLatency, verify, verifyDropRate, seed);
+        endpoint.start();
+        System.setProperty("DB_URL", dbUrl);
+        System.setProperty("AWS_CS_DOC_ENDPOINT", endpoint.getEndpoint());
+        System.setProperty("AWS_CS_SEARCH_ENDPOINT", endpoint.getEndpoint());
+        setDefault("AWS_SIGNING_REGION", "us-east-1");
+        setDefault("AWS_ACCESS_KEY_ID", "benchmark");
+        setDefault("AWS_SECRET_ACCESS_KEY", "benchmark");
+        setDefault("UPLOAD_INTERVAL", "0");
+        setDefault("KEYSET_PAGINATION", "Y");
+        setDefault("LOG_DIR", new File(workDir, "logs").getAbsolutePath());
+
+        try {
+            // Dataset
+            try (Connection conn = DriverManager.getConnection(dbUrl, "sa", "")) {
+                long existingRows = SyntheticDataset.countRows(conn);
+                if (reuseDb && existingRows == rows) {
+                    System.out.println(DF_FULL.format(new Date()) + ": Reusing " + rows + " rows in " + dbUrl);
+                } else {
+                    System.out.println(DF_FULL.format(new Date()) + ": Generating " + rows + " rows in " + dbUrl);
+                    long generateStart = System.currentTimeMillis();
+                    new SyntheticDataset(rows, nameLength, clobNames, multiByteRate, invalidCharRate, seed)
+                            .generate(conn);
+                    System.out.println(DF_FULL.format(new Date()) + ": ...generated in " +
+                            ((System.currentTimeMillis() - generateStart) / 1000) + "s.");
+                }
+            }
+
+            // Run
+            System.gc();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+            long gcCount = getGcCount();
+            long gcTime = getGcTime();
+            long startTime = System.nanoTime();
+            new ExtractAndUpload("sa", "", null, null, null).run();
+            endpoint.awaitIdle(1000L, 60000L);
+            long elapsedNanos = System.nanoTime() - startTime;
+
+            // Report
+            double seconds = elapsedNanos / 1e9;
+            double averageBatch = endpoint.getBatches() == 0 ? 0 : endpoint.getBytes() / (double) endpoint.getBatches();
+            System.out.println("-----------------------------");
+            System.out.println("Rows in table            = " + rows);
+            System.out.println("Documents received       = " + endpoint.getAdds());
+            System.out.println("Batches received         = " + endpoint.getBatches());
+            System.out.println("Wall clock               = " + DF_2_DECIMALS.format(seconds) + "s");
+            System.out.println("Throughput               = " + DF_1_DECIMAL.format(endpoint.getAdds() / seconds) +
+                    " rows/s, " + DF_2_DECIMALS.format(endpoint.getBytes() / (double) MB / seconds) + " MB/s");
+            System.out.println("Batch fill ratio         = " + DF_1_DECIMAL.format(100 * averageBatch / MAX_BATCH_SIZE) +
+                    "% average, " + DF_1_DECIMAL.format(100.0 * endpoint.getLargestBatch() / MAX_BATCH_SIZE) +
+                    "% largest");
+            System.out.println("Peak heap                = " + DF_2_DECIMALS.format(getPeakHeap() / (double) MB) +
+                    " MB (sum of the peaks of the heap memory pools)");
+            System.out.println("GC                       = " + (getGcCount() - gcCount) + " collections, " +
+                    (getGcTime() - gcTime) + " ms");
+            System.out.println("-----------------------------");
+            if (endpoint.getAdds() != rows) {
+                System.out.println("Not all rows were uploaded. Note that SQL_SELECT_DATA in ExtractAndUpload is " +
+                        "limited to 100000 rows when KEYSET_PAGINATION is off.");
+            }
+
+            // Verification, outside of the measured run
+            if (verify) {
+                System.out.println(DF_FULL.format(new Date()) + ": Verifying against " +
+                        endpoint.getDocumentsRetained() + " documents kept by the endpoint...");
+                new Reconciler("sa", "", null, null, null).run();
+                endpoint.awaitIdle(1000L, 60000L);
+                System.out.println("Documents kept after repair = " + endpoint.getDocumentsRetained());
+            }
+        } finally {
+            endpoint.stop();
+        }
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    /**
+     * Returns the highest heap usage since the peaks were reset.
+     *
+     * @return A long with the number of bytes
+     */
+    private static long getPeakHeap() {
+        long peak = 0L;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Returns the number of garbage collections so far.
+     *
+     * @return A long with the number of collections
+     */
+    private static long getGcCount() {
+        long count = 0L;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0L, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * Returns the time spent in garbage collection so far.
+     *
+     * @return A long with the time in milliseconds
+     */
+    private static long getGcTime() {
+        long time = 0L;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0L, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * Sets a VM argument of the program unless it was given.
+     *
+     * @param name Name of the VM argument
+     * @param value Value to use when the VM argument is omitted
+     */
+    private static void setDefault(
+            String name,
+            String value) {
+        if (System.getProperty(name) == null) {
+            System.setProperty(name, value);
+        }
+    }
+
+    private static String getString(
+            String name,
+            String defaultValue) {
+        String value = System.getProperty(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    private static long getLong(
+            String name,
+            long defaultValue) {
+        return Long.parseLong(getString(name, String.valueOf(defaultValue)));
+    }
+
+    private static double getDouble(
+            String name,
+            double defaultValue) {
+        return Double.parseDouble(getString(name, String.valueOf(defaultValue)));
+    }
+
+    private static boolean getFlag(String name) {
+        return getString(name, "N").equalsIgnoreCase("Y");
+    }
+
+}
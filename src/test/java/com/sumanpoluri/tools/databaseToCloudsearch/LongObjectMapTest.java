@@ -0,0 +1,58 @@
+package com.sumanpoluri.tools.databaseToCloudsearch;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the lookups and the growth of LongObjectMap.
+ */
+public class LongObjectMapTest extends TestCase {
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    public void testPutAndGet() {
+        LongObjectMap<String> map = new LongObjectMap<>(16);
+        long[] keys = {0L, 1L, -1L, 42L, Long.MIN_VALUE, Long.MAX_VALUE};
+        for (long key : keys) {
+            map.put(key, "v" + key);
+        }
+        assertEquals(keys.length, map.size());
+        for (long key : keys) {
+            assertEquals("v" + key, map.get(key));
+        }
+        assertNull(map.get(2L));
+        assertNull(new LongObjectMap<String>(0).get(0L));
+    }
+
+    public void testPutReplaces() {
+        LongObjectMap<String> map = new LongObjectMap<>(4);
+        map.put(7L, "a");
+        map.put(7L, "b");
+        assertEquals(1, map.size());
+        assertEquals("b", map.get(7L));
+    }
+
+    public void testGrowth() {
+        // Far more keys than expected, spaced so that many of them share their low bits
+        LongObjectMap<Long> map = new LongObjectMap<>(1);
+        int count = 100000;
+        for (int i=0; i<count; i++) {
+            map.put(i * 1024L, (long) i);
+        }
+        assertEquals(count, map.size());
+        for (int i=0; i<count; i++) {
+            assertEquals(Long.valueOf(i), map.get(i * 1024L));
+            assertNull(map.get(i * 1024L + 1));
+        }
+    }
+
+    public void testNullValueRejected() {
+        LongObjectMap<String> map = new LongObjectMap<>(4);
+        try {
+            map.put(1L, null);
+            fail("A null value was accepted");
+        } catch (IllegalArgumentException e) {
+            assertEquals(0, map.size());
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.sumanpoluri.tools.databaseToCloudsearch;
+
+import junit.framework.TestCase;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Tests the scrubbing and the size accounting of the text read by RowConverter.readText.
+ */
+public class RowConverterTest extends TestCase {
+    //==================================================================================================================
+    // Class fields
+    //==================================================================================================================
+    private static final int READ_BUFFER_SIZE = 8192; // Must match RowConverter
+    private static final String PAIR = "\uD83D\uDE00"; // A supplementary character, as a surrogate pair
+
+    //==================================================================================================================
+    // Instance fields
+    //==================================================================================================================
+    private RowConverter rowConverter;
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    @Override
+    protected void setUp() throws SQLException {
+        // No columns. Only readText is used.
+        ResultSetMetaData meta = (ResultSetMetaData) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class[]{ResultSetMetaData.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return 0;
+                    }
+                });
+        this.rowConverter = new RowConverter(meta);
+    }
+
+    public void testNullOrNoRoom() throws IOException {
+        assertNull(this.rowConverter.readText(null, 100));
+        assertNull(this.rowConverter.readText(new StringReader("abc"), 1));
+    }
+
+    public void testInvalidCharactersReplaced() throws IOException {
+        assertEquals("a b c\td", read("a\u0001b\uFFFEc\td", 100));
+    }
+
+    public void testSurrogatePairReplacedOnce() throws IOException {
+        assertEquals("a b", read("a" + PAIR + "b", 100));
+        // Surrogates without their pair are replaced one for one
+        assertEquals("a b", read("a\uD83Db", 100));
+        assertEquals("a b", read("a\uDE00b", 100));
+        assertEquals("ab ", read("ab\uD83D", 100));
+        assertEquals("  ", read("\uD83D" + PAIR, 100));
+    }
+
+    public void testSurrogatePairSplitAcrossReads() throws IOException {
+        // The high surrogate is the last character of the first read, the low surrogate the first of the next
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<READ_BUFFER_SIZE - 1; i++) {
+            sb.append('a');
+        }
+        String prefix = sb.toString();
+        assertEquals(prefix + " b", read(prefix + PAIR + "b", 2 * READ_BUFFER_SIZE));
+    }
+
+    public void testTruncatedOnWholeCharacter() throws IOException {
+        // Quotes (2) + 'a' (1) + 'b' (1) + a CJK character (3)
+        assertEquals("ab\u4E2D", read("ab\u4E2D", 7));
+        assertEquals(0, this.rowConverter.getFieldsTruncated());
+        assertEquals("ab", read("ab\u4E2D", 6));
+        assertEquals("ab", read("ab\u4E2D", 5));
+        assertEquals(2, this.rowConverter.getFieldsTruncated());
+        assertEquals("", read("abc", 2));
+    }
+
+    public void testEscapedCharactersCounted() throws IOException {
+        // Quotes (2) + '"' (2) + '\\' (2)
+        assertEquals("\"\\", read("\"\\\"", 6));
+        assertEquals("\"", read("\"\\", 5));
+        // The line separator is written as an escape of 6 bytes
+        assertEquals("", read("\u2028", 7));
+        assertEquals("\u2028", read("\u2028", 8));
+    }
+
+    public void testEncodedSizeMatchesJson() {
+        String[] values = {"", "plain", "quote \" and backslash \\", "tab\tnew line\n", "\u00E9\u4E2D",
+                "\u2028\u2029", "\u0080\u009f", PAIR};
+        for (String value : values) {
+            assertEquals(
+                    value,
+                    JSONObject.quote(value).getBytes(StandardCharsets.UTF_8).length,
+                    Utils.getEncodedSize(value));
+        }
+    }
+
+    /**
+     * Reads the text with RowConverter.readText.
+     *
+     * @param text Text to read
+     * @param maxBytes Max size of the value in the document, in bytes, including the quotes
+     * @return A String with the value read
+     * @throws IOException
+     */
+    private String read(
+            String text,
+            long maxBytes) throws IOException {
+        return this.rowConverter.readText(new StringReader(text), maxBytes);
+    }
+
+}
@@ -0,0 +1,439 @@
+package com.sumanpoluri.tools.databaseToCloudsearch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A local stand-in for the document and search endpoints of an AWS Cloudsearch domain. It accepts every batch posted
+ * to /2013-01-01/documents/batch, counts the documents and bytes received and answers the way Cloudsearch does, so that
+ * the whole program can be run without a Cloudsearch domain.
+ * <p>
+ * When asked to, it also keeps the documents it receives, losing a given fraction of them, and answers the id range
+ * searches of the verification on /2013-01-01/search.
+ * </p>
+ */
+public class StubCloudsearchEndpoint {
+    //==================================================================================================================
+    // Class fields
+    //==================================================================================================================
+    private static final String DOCUMENTS_PATH = "/2013-01-01/documents/batch";
+    private static final String SEARCH_PATH = "/2013-01-01/search";
+    private static final Pattern RANGE_QUERY = Pattern.compile("\\(range field=id \\[(-?\\d+),(-?\\d+)\\]\\)");
+    // org.json writes no whitespace between keys and values
+    private static final String ADD_MARKER = "\"type\":\"add\"";
+    private static final String DELETE_MARKER = "\"type\":\"delete\"";
+
+    //==================================================================================================================
+    // Instance fields
+    //==================================================================================================================
+    private HttpServer server;
+    private ExecutorService executor;
+    private long latency;
+    private boolean retainDocuments;
+    private double dropRate;
+    private Random random;
+    // Documents kept, by the value of their 'id' field
+    private ConcurrentSkipListMap<Long, JSONObject> documents = new ConcurrentSkipListMap<>();
+    private AtomicInteger inFlight = new AtomicInteger();
+    private AtomicLong batches = new AtomicLong();
+    private AtomicLong bytes = new AtomicLong();
+    private AtomicLong adds = new AtomicLong();
+    private AtomicLong deletes = new AtomicLong();
+    private AtomicLong largestBatch = new AtomicLong();
+    private volatile long lastRequestTime = System.currentTimeMillis();
+
+    //==================================================================================================================
+    // Constructors
+    //==================================================================================================================
+    /**
+     * Main constructor
+     *
+     * @param latency Time in milliseconds to hold each request before answering it, to stand in for the network
+     * @param retainDocuments Whether to keep the documents received, for the searches
+     * @param dropRate Fraction of the documents received to lose instead of keeping them
+     * @param seed Seed of the random choice of the documents lost
+     */
+    public StubCloudsearchEndpoint(
+            long latency,
+            boolean retainDocuments,
+            double dropRate,
+            long seed) {
+        this.latency = latency;
+        this.retainDocuments = retainDocuments;
+        this.dropRate = dropRate;
+        this.random = new Random(seed);
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    /**
+     * Starts listening on a free local port.
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext(DOCUMENTS_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleBatch(exchange);
+                } catch (RuntimeException e) {
+                    sendError(exchange, e);
+                }
+            }
+        });
+        this.server.createContext(SEARCH_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleSearch(exchange);
+                } catch (RuntimeException e) {
+                    sendError(exchange, e);
+                }
+            }
+        });
+        this.executor = Executors.newFixedThreadPool(4);
+        this.server.setExecutor(this.executor);
+        this.server.start();
+    }
+
+    /**
+     * Stops listening.
+     */
+    public void stop() {
+        if (this.server != null) {
+            this.server.stop(0);
+            this.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the URL to use as the document endpoint (AWS_CS_DOC_ENDPOINT) and the search endpoint
+     * (AWS_CS_SEARCH_ENDPOINT).
+     *
+     * @return A String with the URL
+     */
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort();
+    }
+
+    /**
+     * Waits until no request is in progress and none has arrived for the given time. Asynchronous uploads can still be
+     * in progress when the extract and upload process returns.
+     *
+     * @param quietTime Time in milliseconds without requests
+     * @param timeout Maximum time in milliseconds to wait
+     * @throws InterruptedException
+     */
+    public void awaitIdle(
+            long quietTime,
+            long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (System.currentTimeMillis() < deadline) {
+            if (this.inFlight.get() == 0 && System.currentTimeMillis() - this.lastRequestTime >= quietTime) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getAdds() {
+        return adds.get();
+    }
+
+    public long getDeletes() {
+        return deletes.get();
+    }
+
+    public long getLargestBatch() {
+        return largestBatch.get();
+    }
+
+    public long getDocumentsRetained() {
+        return documents.size();
+    }
+
+    /**
+     * Reads a batch, counts its documents and answers with the status, adds and deletes.
+     *
+     * @param exchange Request and response
+     * @throws IOException
+     */
+    private void handleBatch(HttpExchange exchange) throws IOException {
+        this.inFlight.incrementAndGet();
+        try {
+            byte[] body = readBody(exchange.getRequestBody());
+            String batch = new String(body, StandardCharsets.UTF_8);
+            int batchAdds = countOccurrences(batch, ADD_MARKER);
+            int batchDeletes = countOccurrences(batch, DELETE_MARKER);
+
+            if (this.retainDocuments) {
+                retain(new JSONArray(batch));
+            }
+
+            this.batches.incrementAndGet();
+            this.bytes.addAndGet(body.length);
+            this.adds.addAndGet(batchAdds);
+            this.deletes.addAndGet(batchDeletes);
+            long largest = this.largestBatch.get();
+            while (body.length > largest && !this.largestBatch.compareAndSet(largest, body.length)) {
+                largest = this.largestBatch.get();
+            }
+
+            if (this.latency > 0) {
+                try {
+                    Thread.sleep(this.latency);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            sendJson(exchange, "{\"status\":\"success\",\"adds\":" + batchAdds + ",\"deletes\":" + batchDeletes + "}");
+        } finally {
+            this.lastRequestTime = System.currentTimeMillis();
+            this.inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Keeps the added documents of a batch, except for a random dropRate of them, and forgets the deleted ones.
+     *
+     * @param batch Documents of the batch
+     */
+    private void retain(JSONArray batch) {
+        for (int i=0; i<batch.length(); i++) {
+            JSONObject document = batch.getJSONObject(i);
+            if ("delete".equals(document.getString("type"))) {
+                String id = document.getString("id");
+                Iterator<JSONObject> it = this.documents.values().iterator();
+                while (it.hasNext()) {
+                    if (id.equals(it.next().getString("id"))) {
+                        it.remove();
+                    }
+                }
+                continue;
+            }
+            boolean dropped;
+            synchronized (this.random) {
+                dropped = this.random.nextDouble() < this.dropRate;
+            }
+            if (!dropped) {
+                this.documents.put(getIdField(document.getJSONObject("fields")), document);
+            }
+        }
+    }
+
+    /**
+     * Returns the value of the 'id' field of a document. The names of the fields are the column labels of the SQL, so
+     * their case depends on the database (For e.g., H2 labels the columns in upper case).
+     *
+     * @param fields Fields of the document
+     * @return A long with the id
+     */
+    private static long getIdField(JSONObject fields) {
+        for (String name : fields.keySet()) {
+            if (name.equalsIgnoreCase("id")) {
+                return fields.getLong(name);
+            }
+        }
+        throw new IllegalArgumentException("Document without an id field: " + fields.keySet());
+    }
+
+    /**
+     * Answers an id range search, (range field=id [first,last]), with the documents kept in that range and the fields
+     * asked for in the 'return' parameter.
+     *
+     * @param exchange Request and response
+     * @throws IOException
+     */
+    private void handleSearch(HttpExchange exchange) throws IOException {
+        // The SDK sends long searches as a form post instead of a query string
+        Map<String, String> params = parseParams(exchange.getRequestURI().getRawQuery());
+        params.putAll(parseParams(new String(readBody(exchange.getRequestBody()), StandardCharsets.UTF_8)));
+        String query = params.get("q");
+        Matcher matcher = RANGE_QUERY.matcher(query == null ? "" : query.trim());
+        if (!matcher.matches()) {
+            byte[] response = ("{\"error\":{\"message\":\"Only id range queries are supported: " + query + "\"}}")
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(400, response.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(response);
+            out.close();
+            return;
+        }
+        long first = Long.parseLong(matcher.group(1));
+        long last = Long.parseLong(matcher.group(2));
+        int size = params.containsKey("size") ? Integer.parseInt(params.get("size")) : 10;
+        String returnFields = params.containsKey("return") ? params.get("return") : "_all_fields";
+
+        JSONArray hits = new JSONArray();
+        Map<Long, JSONObject> range = this.documents.subMap(first, true, last, true);
+        for (JSONObject document : range.values()) {
+            if (hits.length() >= size) {
+                break;
+            }
+            JSONObject fields = document.getJSONObject("fields");
+            JSONObject hitFields = new JSONObject();
+            for (String name : fields.keySet()) {
+                if (returnFields.equals("_all_fields") || ("," + returnFields + ",").contains("," + name + ",")) {
+                    // Every value is returned as an array of strings
+                    JSONArray values = new JSONArray();
+                    Object value = fields.get(name);
+                    if (value instanceof JSONArray) {
+                        for (int i=0; i<((JSONArray) value).length(); i++) {
+                            values.put(String.valueOf(((JSONArray) value).get(i)));
+                        }
+                    } else {
+                        values.put(String.valueOf(value));
+                    }
+                    hitFields.put(name, values);
+                }
+            }
+            hits.put(new JSONObject()
+                    .put("id", document.getString("id"))
+                    .put("fields", hitFields));
+        }
+
+        JSONObject response = new JSONObject()
+                .put("status", new JSONObject().put("rid", "stub").put("time-ms", 0))
+                .put("hits", new JSONObject()
+                        .put("found", range.size())
+                        .put("start", 0)
+                        .put("hit", hits));
+        sendJson(exchange, response.toString());
+    }
+
+    /**
+     * Parses URL encoded parameters.
+     *
+     * @param encoded Parameters as in a query string, or null
+     * @return The values of the parameters, by name
+     * @throws IOException
+     */
+    private static Map<String, String> parseParams(String encoded) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        if (encoded == null || encoded.isEmpty()) {
+            return params;
+        }
+        for (String pair : encoded.split("&")) {
+            int index = pair.indexOf('=');
+            if (index > 0) {
+                params.put(
+                        URLDecoder.decode(pair.substring(0, index), "UTF-8"),
+                        URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Answers a request that could not be handled with a server error, instead of dropping the connection, so that the
+     * cause shows in the output of the program.
+     *
+     * @param exchange Request and response
+     * @param e The exception the request failed with
+     * @throws IOException
+     */
+    private static void sendError(
+            HttpExchange exchange,
+            RuntimeException e) throws IOException {
+        e.printStackTrace();
+        byte[] response = new JSONObject()
+                .put("error", new JSONObject().put("message", "Stub endpoint failed: " + e))
+                .toString()
+                .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(500, response.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(response);
+        out.close();
+    }
+
+    /**
+     * Answers a request with a JSON body.
+     *
+     * @param exchange Request and response
+     * @param json Body of the response
+     * @throws IOException
+     */
+    private static void sendJson(
+            HttpExchange exchange,
+            String json) throws IOException {
+        byte[] response = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, response.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(response);
+        out.close();
+    }
+
+    /**
+     * Reads a request body fully.
+     *
+     * @param in Request body
+     * @return The bytes of the body
+     * @throws IOException
+     */
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Counts the occurrences of a marker in a string.
+     *
+     * @param value String to search
+     * @param marker Marker to count
+     * @return An int with the number of occurrences
+     */
+    private static int countOccurrences(
+            String value,
+            String marker) {
+        int count = 0;
+        int index = value.indexOf(marker);
+        while (index >= 0) {
+            count++;
+            index = value.indexOf(marker, index + marker.length());
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.sumanpoluri.tools.databaseToCloudsearch;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Random;
+
+/**
+ * Generates the 'employee' table read by the SQLs in ExtractAndUpload and PageFetcher, filled with random rows. The
+ * length and type of the name columns and the rates of multi-byte and invalid characters in them can be changed to
+ * try out different shapes of data.
+ */
+public class SyntheticDataset {
+    //==================================================================================================================
+    // Class fields
+    //==================================================================================================================
+    private static final String SQL_CREATE_TABLE =
+            "CREATE TABLE employee (" +
+                    "id BIGINT PRIMARY KEY, " +
+                    "first_name %1$s, " +
+                    "last_name %1$s, " +
+                    "date_of_birth DATE, " +
+                    "join_date TIMESTAMP" +
+            ")";
+    private static final String SQL_INSERT_ROW =
+            "INSERT INTO employee (id, first_name, last_name, date_of_birth, join_date) VALUES (?, ?, ?, ?, ?)";
+    private static final String SQL_COUNT_ROWS = "SELECT COUNT(*) FROM employee";
+    private static final int INSERT_BATCH_SIZE = 1000;
+    private static final char[] ASCII_CHARS = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+    private static final char[] MULTI_BYTE_CHARS = {'é', 'ü', 'ñ', '中', '日', 'ж'};
+    // Characters that Cloudsearch rejects and RowConverter removes
+    private static final char[] INVALID_CHARS = {'\u0001', '\u0008', '\u001b', '\uFFFE', '\uFFFF'};
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    //==================================================================================================================
+    // Instance fields
+    //==================================================================================================================
+    private long rows;
+    private int nameLength;
+    private boolean clobNames;
+    private double multiByteRate;
+    private double invalidCharRate;
+    private Random random;
+
+    //==================================================================================================================
+    // Constructors
+    //==================================================================================================================
+    /**
+     * Main constructor
+     *
+     * @param rows Number of rows
+     * @param nameLength Average number of characters in each name column
+     * @param clobNames true to make the name columns CLOBs instead of VARCHARs
+     * @param multiByteRate Fraction of the characters that take more than one byte in UTF-8
+     * @param invalidCharRate Fraction of the characters that are invalid for Cloudsearch
+     * @param seed Seed of the random values, so that runs can be repeated
+     */
+    public SyntheticDataset(
+            long rows,
+            int nameLength,
+            boolean clobNames,
+            double multiByteRate,
+            double invalidCharRate,
+            long seed) {
+        this.rows = rows;
+        this.nameLength = nameLength;
+        this.clobNames = clobNames;
+        this.multiByteRate = multiByteRate;
+        this.invalidCharRate = invalidCharRate;
+        this.random = new Random(seed);
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+    /**
+     * Returns the number of rows in the table, or -1 if the table does not exist.
+     *
+     * @param conn Database connection
+     * @return A long with the number of rows
+     */
+    public static long countRows(Connection conn) {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(SQL_COUNT_ROWS)) {
+            rs.next();
+            return rs.getLong(1);
+        } catch (SQLException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Creates the table, dropping any previous one, and fills it.
+     *
+     * @param conn Database connection
+     * @throws SQLException
+     */
+    public void generate(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS employee");
+            stmt.execute(String.format(
+                    SQL_CREATE_TABLE,
+                    this.clobNames ? "CLOB" : "VARCHAR(" + Math.max(1, this.nameLength * 2) + ")"));
+        }
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        long startDate = Timestamp.valueOf("1950-01-01 00:00:00").getTime();
+        long joinStartDate = Timestamp.valueOf("2000-01-01 00:00:00").getTime();
+        try (PreparedStatement stmt = conn.prepareStatement(SQL_INSERT_ROW)) {
+            for (long id=1; id<=this.rows; id++) {
+                stmt.setLong(1, id);
+                stmt.setString(2, nextName());
+                stmt.setString(3, nextName());
+                stmt.setDate(4, new Date(startDate + DAY * this.random.nextInt(365 * 50)));
+                stmt.setTimestamp(5, new Timestamp(joinStartDate + 1000L * this.random.nextInt(Integer.MAX_VALUE / 4)));
+                stmt.addBatch();
+                if (id % INSERT_BATCH_SIZE == 0 || id == this.rows) {
+                    stmt.executeBatch();
+                    conn.commit();
+                }
+            }
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Returns a random name of half to one and a half times the average length.
+     *
+     * @return A String with the name
+     */
+    private String nextName() {
+        int length = this.nameLength <= 1 ? this.nameLength : this.nameLength / 2 + this.random.nextInt(this.nameLength);
+        char[] chars = new char[length];
+        for (int i=0; i<length; i++) {
+            double r = this.random.nextDouble();
+            if (r < this.invalidCharRate) {
+                chars[i] = INVALID_CHARS[this.random.nextInt(INVALID_CHARS.length)];
+            } else if (r < this.invalidCharRate + this.multiByteRate) {
+                chars[i] = MULTI_BYTE_CHARS[this.random.nextInt(MULTI_BYTE_CHARS.length)];
+            } else {
+                chars[i] = ASCII_CHARS[this.random.nextInt(ASCII_CHARS.length)];
+            }
+        }
+        return new String(chars);
+    }
+
+}